@@ -1,22 +1,53 @@
 package com.xelatech.barcode.localizer;
 
+import java.awt.Dimension;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.RotatedRect;
+import org.opencv.core.Scalar;
 import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
 /**
  * Parent class containing common methods and definitions for 1D and 2D barcode
  * searches.
+ *
+ * Thread safety: a Barcode instance is not thread-safe. All intermediate images
+ * and buffers used by a search live in the instance (its ImageInfo), so one
+ * instance must only be used by one thread at a time, but any number of
+ * instances can locate barcodes in parallel within the same JVM. Load mode and
+ * target resolution are settings of each instance. The only mutable static
+ * state of this package is the pool set with setMatPool(), which is shared by
+ * all instances created afterwards and is itself thread-safe, MatTracker and the
+ * debugging helpers (ImageDisplay and writeMat, which redirects System.out), so
+ * debugging output should only be turned on for single-threaded runs.
+ *
+ * Native memory: close() frees all matrices of the instance right away instead
+ * of leaving them to the garbage collector. Results returned by locateBarcode()
+ * are closed separately. MatTracker counts the matrices not freed yet.
  */
-public abstract class Barcode {
+public abstract class Barcode implements AutoCloseable {
 	/**
 	 * Flag to indicate what kind of searches to perform on image to locate barcode.
 	 */
@@ -25,7 +56,42 @@ public abstract class Barcode {
 
 	protected boolean postProcessResizeBarcode = true;
 
-	protected static double USE_ROTATED_RECT_ANGLE = /* 361 */-9;
+	protected static final double USE_ROTATED_RECT_ANGLE = /* 361 */-9;
+
+	/**
+	 * Pool working matrices of new instances are borrowed from, null to allocate
+	 * them for every instance.
+	 */
+	private static volatile MatPool matPool;
+
+	/**
+	 * Resolution in pixels per millimetre images of known resolution are scaled to
+	 * before searching, or 0 to scale all images to MAX_ROWS.
+	 */
+	private double targetResolution;
+
+	/**
+	 * Resolution of the full resolution image in pixels per millimetre, 0 if
+	 * unknown.
+	 */
+	private double imageResolution;
+
+	/**
+	 * Set when the image was scaled to targetResolution rather than to MAX_ROWS.
+	 */
+	private boolean scaledToResolution;
+
+	/**
+	 * Minimum number of tiles in the tile grid for tile probabilities to be
+	 * calculated in parallel. Smaller grids are done faster in the calling thread.
+	 */
+	protected static final int PARALLEL_TILING_MIN_TILES = 2048;
+
+	/**
+	 * Executor to calculate tile probabilities on or null to calculate them in the
+	 * calling thread.
+	 */
+	protected ExecutorService tilingExecutor;
 
 	/**
 	 * Filename of barcode image file.
@@ -38,10 +104,98 @@ public abstract class Barcode {
 	boolean debugging;
 
 	/**
-	 * Various parameters and thresholds used during the search.
+	 * Various parameters and thresholds used during the search. While searching
+	 * these are the parameters of the profile currently being searched with.
 	 */
 	protected SearchParameters searchParams;
 
+	/**
+	 * Parameters of every size flag that is set. locateBarcode() runs the tiling
+	 * and candidate extraction once for each of them on the same preprocessed image
+	 * and gradients.
+	 */
+	protected List<SearchParameters> searchProfiles = new ArrayList<>();
+
+	/**
+	 * Candidate regions of the same code type overlapping a better scored one by
+	 * more than this ratio (intersection over union of their rotated rectangles)
+	 * are the same barcode found again and are suppressed.
+	 */
+	protected static final double DUPLICATE_OVERLAP_RATIO = 0.5;
+
+	/**
+	 * Weights of the mean tile probability, the area ratio and the edge density in
+	 * the score of a candidate. They add up to 1 so scores are within 0-1.
+	 */
+	protected static final double SCORE_PROBABILITY_WEIGHT = 0.5;
+
+	protected static final double SCORE_AREA_RATIO_WEIGHT = 0.25;
+
+	protected static final double SCORE_EDGE_DENSITY_WEIGHT = 0.25;
+
+	/**
+	 * Candidates found with all profiles and tile sizes. They are only normalized
+	 * once duplicates have been suppressed.
+	 */
+	private final List<BarcodeCandidate> foundCandidates = new ArrayList<>();
+
+	private int suppressedCandidates;
+
+	/**
+	 * Set once the image has been scaled and converted to grayscale.
+	 */
+	private boolean preprocessed;
+
+	/**
+	 * System.nanoTime() value at which locateBarcode(Duration) stops searching.
+	 * Only used when hasDeadline is set.
+	 */
+	private long deadline;
+
+	private boolean hasDeadline;
+
+	/**
+	 * Set when the last search stopped at its deadline before searching all
+	 * profiles, tile sizes and contours.
+	 */
+	private boolean searchTruncated;
+
+	/**
+	 * Score of the contour currently passed to processCandidateRegion(), given to
+	 * the candidates added for it.
+	 */
+	private double regionScore;
+
+	/**
+	 * Margin added on every side of the bounding rectangle of a tracked barcode,
+	 * relative to its width and height, to allow for movement between frames.
+	 */
+	protected static final double TRACKING_WINDOW_MARGIN = 1.0;
+
+	/**
+	 * Every fullSearchInterval-th search looks at the whole image in tracking mode,
+	 * the others only at windows around the barcodes found before. 1 or less turns
+	 * tracking off.
+	 */
+	private int fullSearchInterval;
+
+	private int searchesSinceFullSearch;
+
+	/**
+	 * Windows around the candidates of the last search, in original image
+	 * coordinates.
+	 */
+	private final List<Rect> trackedWindows = new ArrayList<>();
+
+	/**
+	 * Size of the whole image after preprocessing. Search parameters are derived
+	 * from it even when only a region is searched, so barcodes are looked for at
+	 * the same scale.
+	 */
+	private int parameterRows;
+
+	private int parameterCols;
+
 	protected ImageInfo imgDetails;
 
 	protected int rows;
@@ -50,13 +204,42 @@ public abstract class Barcode {
 
 	List<CandidateResult> candidateBarcodes = new ArrayList<>();
 
-	static enum CodeType {
+	/**
+	 * Empty matrix required as parameter in contour finding. Not used anywhere
+	 * else. findContours writes to it, so each instance has its own.
+	 */
+	private final Mat hierarchy = MatTracker.track(new Mat());
+
+	public static enum CodeType {
 		LINEAR, MATRIX
 	};
 
 	public Barcode(final String filename, final TryHarderFlags flag) throws IOException {
+		this(filename, flag, LoadMode.COLOR, 0);
+	}
+
+	/**
+	 * Loads the image file the given way. GRAYSCALE skips the conversion of the
+	 * image to grayscale and returns grayscale candidate regions. Images of known
+	 * resolution are scaled to the target resolution instead of to MAX_ROWS rows,
+	 * so that a barcode has the same size in pixels whatever the source, see
+	 * setTargetResolution(). The resolution is then read from the metadata of the
+	 * file, see ImageResolution, and reduced load modes keep enough pixels for it.
+	 *
+	 * @param filename
+	 * @param flag
+	 * @param mode             how to load the image file
+	 * @param targetResolution pixels per millimetre or 0 to scale to MAX_ROWS
+	 * @throws IOException
+	 */
+	public Barcode(final String filename, final TryHarderFlags flag, final LoadMode mode,
+			final double targetResolution) throws IOException {
 		this.fileName = filename;
-		this.imgDetails = new ImageInfo(this.loadImage());
+		this.targetResolution = targetResolution;
+		// loadImage() sets up the full resolution source when it loads a reduced image.
+		this.imgDetails = new ImageInfo(null, Barcode.matPool);
+		this.imgDetails.srcOriginal = this.loadImage(mode);
+		this.imgDetails.ownsOriginal = true;
 
 		this.rows = this.imgDetails.srcOriginal.rows();
 		this.cols = this.imgDetails.srcOriginal.cols();
@@ -74,7 +257,7 @@ public abstract class Barcode {
 	 * @throws IOException
 	 */
 	public Barcode(final Mat img, final TryHarderFlags flag) throws IOException {
-		this.imgDetails = new ImageInfo(img);
+		this.imgDetails = new ImageInfo(img, Barcode.matPool);
 
 		this.rows = this.imgDetails.srcOriginal.rows();
 		this.cols = this.imgDetails.srcOriginal.cols();
@@ -94,28 +277,28 @@ public abstract class Barcode {
 	}
 
 	/**
-	 * Used for video or camera feed when all images are of the same size.
+	 * Used for video or camera feed to search a new image with the same Barcode
+	 * instance. Images may differ in size, internal buffers are only reallocated
+	 * when an image is larger than any seen before.
 	 *
 	 * @param barcode
 	 * @param img
-	 * @return
+	 * @return true, kept for callers that fell back to creating a new Barcode
 	 */
 	public static boolean updateImage(final Barcode barcode, final Mat img) {
-		final int orig_rows = barcode.imgDetails.srcOriginal.rows();
-		final int orig_cols = barcode.imgDetails.srcOriginal.cols();
-
-		final int new_rows = img.rows();
-		final int new_cols = img.cols();
-
-		if ((orig_rows != new_rows) || (orig_cols != new_cols)) {
-			return false;
-		}
-
 		barcode.candidateBarcodes.clear();
+		if (barcode.imgDetails.ownsOriginal == true) {
+			MatTracker.release(barcode.imgDetails.srcOriginal);
+			barcode.imgDetails.ownsOriginal = false;
+		}
+		barcode.imgDetails.releaseFullSource();
 		barcode.imgDetails.srcOriginal = img;
-		Imgproc.resize(barcode.imgDetails.srcOriginal, barcode.imgDetails.srcScaled,
-				barcode.imgDetails.srcScaled.size(), 0, 0, Imgproc.INTER_AREA);
-		Imgproc.cvtColor(barcode.imgDetails.srcScaled, barcode.imgDetails.srcGrayscale, Imgproc.COLOR_RGB2GRAY);
+
+		// The image is only scaled once the whole of it is searched, tracked searches
+		// scale just their windows.
+		barcode.preprocessed = false;
+		barcode.calcScaledSize();
+		barcode.applySearchProfile(barcode.searchProfiles.get(0));
 
 		return true;
 	}
@@ -131,67 +314,872 @@ public abstract class Barcode {
 		this.postProcessResizeBarcode = postProcess;
 	}
 
+	/**
+	 * Calculates tile probabilities in parallel on the common ForkJoinPool.
+	 *
+	 * @param parallel
+	 */
+	public void setParallelTiling(final boolean parallel) {
+		this.setParallelTiling(parallel ? ForkJoinPool.commonPool() : null);
+	}
+
+	/**
+	 * Calculates tile probabilities in bands of tile rows on the given executor.
+	 * Every band writes its own part of the probability matrix, so the result is
+	 * identical to the serial calculation. Tile grids smaller than
+	 * PARALLEL_TILING_MIN_TILES are still done in the calling thread.
+	 *
+	 * @param executor executor to use or null to calculate in the calling thread
+	 */
+	public void setParallelTiling(final ExecutorService executor) {
+		this.tilingExecutor = executor;
+	}
+
+	/**
+	 * Turns tracking mode on for video. Once barcodes have been found, following
+	 * searches only look at windows around them, expanded by
+	 * TRACKING_WINDOW_MARGIN, which costs a fraction of a whole image search. The
+	 * whole image is still searched every fullSearchInterval-th time, to pick up
+	 * new barcodes, and whenever nothing is found in the windows.
+	 *
+	 * @param fullSearchInterval 1 or less to search the whole image every time
+	 */
+	public void setTracking(final int fullSearchInterval) {
+		this.fullSearchInterval = fullSearchInterval;
+		this.searchesSinceFullSearch = 0;
+		this.trackedWindows.clear();
+	}
+
+	/**
+	 * Makes instances created from now on borrow their working matrices from the
+	 * pool and give them back on close(), so that images of sizes seen before are
+	 * processed without native allocations. Pass null to stop pooling. Unlike the
+	 * other settings this one is process-wide, as the point of the pool is to be
+	 * shared by all instances.
+	 *
+	 * @param pool
+	 */
+	public static void setMatPool(final MatPool pool) {
+		Barcode.matPool = pool;
+	}
+
+	/**
+	 * Scales images of known resolution to the given resolution instead of to
+	 * MAX_ROWS rows, so that a barcode has the same size in pixels whatever the
+	 * source, and tile sizes are those of a MAX_ROWS image so they are fixed in
+	 * millimetres too. One set of search parameters then suits receipts and large
+	 * drawings alike. The resolution of a Mat is set with setImageResolution().
+	 * Images of unknown resolution, or of less than the target, are scaled to
+	 * MAX_ROWS as before. The image is preprocessed again for the new target; to
+	 * read the resolution of an image file, pass the target to the constructor.
+	 *
+	 * @param pixelsPerMillimetre target resolution or 0 to always scale to MAX_ROWS
+	 */
+	public void setTargetResolution(final double pixelsPerMillimetre) {
+		this.targetResolution = pixelsPerMillimetre;
+		this.preprocessed = false;
+		this.preprocessImage();
+		this.applySearchProfile(this.searchProfiles.get(0));
+	}
+
+	/**
+	 * Sets the resolution of the image, e.g. of a Mat rendered from a PDF page or
+	 * from a camera at a known distance, and preprocesses it again for the target
+	 * resolution. It is kept for images passed to updateImage().
+	 *
+	 * @param pixelsPerMillimetre resolution or 0 if unknown
+	 */
+	public void setImageResolution(final double pixelsPerMillimetre) {
+		this.imageResolution = pixelsPerMillimetre;
+		this.preprocessed = false;
+		this.preprocessImage();
+		this.applySearchProfile(this.searchProfiles.get(0));
+	}
+
+	/**
+	 * Returns the resolution of the image in pixels per millimetre, read from the
+	 * image file if it was loaded with a target resolution.
+	 *
+	 * @return resolution or 0 if unknown
+	 */
+	public double getImageResolution() {
+		return this.imageResolution;
+	}
+
+	/**
+	 * Frees the native memory of all intermediate images and of the source image
+	 * if it was loaded from a file. Mats passed in by the caller and the results
+	 * of locateBarcode() are not freed. The instance cannot be used afterwards.
+	 */
+	@Override
+	public void close() {
+		this.imgDetails.release();
+		MatTracker.release(this.hierarchy);
+		this.candidateBarcodes.clear();
+		this.foundCandidates.clear();
+	}
+
 	protected void setSearchParameters(final TryHarderFlags flags) {
-		// Should not be used when multiple size flags are set. It will set the search
-		// parameters to one of them and ignore the others
-		if ((this.sizeFlag & TryHarderFlags.SMALL.value()) != 0) {
-			this.searchParams = SearchParameters.getSmallParameters();
+		// Every size flag that is set gets its own search profile, so ALL searches with
+		// all of them.
+		this.searchProfiles.clear();
+
+		if ((this.sizeFlag & TryHarderFlags.NORMAL.value()) != 0) {
+			this.searchProfiles.add(SearchParameters.getNormalParameters());
 		}
 
-		if ((this.sizeFlag & TryHarderFlags.LARGE.value()) != 0) {
-			this.searchParams = SearchParameters.getLargeParameters();
+		if ((this.sizeFlag & TryHarderFlags.SMALL.value()) != 0) {
+			this.searchProfiles.add(SearchParameters.getSmallParameters());
 		}
 
-		if ((this.sizeFlag & TryHarderFlags.NORMAL.value()) != 0) {
-			this.searchParams = SearchParameters.getNormalParameters();
+		if ((this.sizeFlag & TryHarderFlags.LARGE.value()) != 0) {
+			this.searchProfiles.add(SearchParameters.getLargeParameters());
 		}
 
 		if ((this.sizeFlag & TryHarderFlags.VERY_SMALL_LINEAR.value()) != 0) {
-			this.searchParams = SearchParameters.getVerySmallLinearParameters();
+			this.searchProfiles.add(SearchParameters.getVerySmallLinearParameters());
 		}
 
 		if ((this.sizeFlag & TryHarderFlags.VERY_SMALL_MATRIX.value()) != 0) {
-			this.searchParams = SearchParameters.getVerySmallMatrixParameters();
+			this.searchProfiles.add(SearchParameters.getVerySmallMatrixParameters());
+		}
+
+		if (this.searchProfiles.isEmpty()) {
+			this.searchProfiles.add(SearchParameters.getNormalParameters());
 		}
 
 		this.preprocessImage();
+		this.applySearchProfile(this.searchProfiles.get(0));
+	}
+
+	/**
+	 * Makes the given profile the current search parameters and sizes the
+	 * probability matrix for it.
+	 *
+	 * @param profile
+	 */
+	protected void applySearchProfile(final SearchParameters profile) {
+		this.searchParams = profile;
+
+		// Tile sizes of an image scaled to the target resolution are those of a MAX_ROWS
+		// image, so fixed in millimetres rather than relative to the image size.
+		this.searchParams.setImageSpecificParameters(this.scaledToResolution ? profile.MAX_ROWS : this.parameterRows,
+				this.parameterCols);
+		this.imgDetails.initializeMats(this.rows, this.cols, this.searchParams);
+	}
+
+	/**
+	 * Locates candidate barcode regions in the image. Gradients and tile
+	 * probabilities are calculated here, what to extract from each candidate region
+	 * is decided by the child class in processCandidateRegion().
+	 *
+	 * @return candidates, best score first
+	 * @throws IOException
+	 */
+	public List<CandidateResult> locateBarcode() throws IOException {
+		return this.locateBarcode((Duration) null);
+	}
+
+	/**
+	 * Same as locateBarcode(), but stops searching once the budget is used up.
+	 * The deadline is checked between stages, tile sizes and contours, so a stage
+	 * that has started (e.g. the gradient calculation or the normalization of a
+	 * candidate) is finished. Candidates found until then are returned, at least
+	 * the best scored one is normalized however late it is, and
+	 * isSearchTruncated() tells whether the search was cut short.
+	 *
+	 * @param budget time allowed for the search or null for no limit
+	 * @return candidates, best score first
+	 * @throws IOException
+	 */
+	public List<CandidateResult> locateBarcode(final Duration budget) throws IOException {
+		this.startSearch(budget);
+
+		if ((this.trackedWindows.isEmpty() == false)
+				&& ((this.searchesSinceFullSearch + 1) < this.fullSearchInterval)) {
+			this.searchesSinceFullSearch++;
+
+			this.searchRegions(this.trackedWindows);
+
+			if (this.candidateBarcodes.isEmpty() == false) {
+				this.updateTrackedWindows();
+				return this.candidateBarcodes;
+			}
+
+			// Tracking is lost, search the whole image if there is time left. The windows
+			// are kept for the next call otherwise.
+			if (this.isPastDeadline()) {
+				return this.candidateBarcodes;
+			}
+		}
+
+		this.preprocessImage();
+		this.search();
+		this.searchesSinceFullSearch = 0;
+
+		if (this.fullSearchInterval > 1) {
+			this.updateTrackedWindows();
+		}
+
+		return this.candidateBarcodes;
+	}
+
+	/**
+	 * Locates candidate barcode regions only inside the given regions of the
+	 * original image, e.g. the label area of a form. Each region is searched
+	 * through a view of the original image, so the cost depends on the area of the
+	 * regions, not of the image. Overlapping regions are merged and searched once.
+	 * ROICoords of the results are in original image coordinates. Tracking mode is
+	 * not affected.
+	 *
+	 * @param regions regions in original image coordinates, parts outside the
+	 *                image are ignored
+	 * @return candidates, best score first
+	 * @throws IOException
+	 * @throws IllegalArgumentException if regions or one of them is null, use
+	 *                                  locateBarcode() to search the whole image
+	 */
+	public List<CandidateResult> locateBarcode(final Rect... regions) throws IOException {
+		return this.locateBarcode(null, regions);
+	}
+
+	/**
+	 * Same as locateBarcode(Rect...), but stops searching once the budget is used
+	 * up, see locateBarcode(Duration).
+	 *
+	 * @param budget  time allowed for the search or null for no limit
+	 * @param regions regions in original image coordinates
+	 * @return candidates, best score first
+	 * @throws IOException
+	 * @throws IllegalArgumentException if regions or one of them is null
+	 */
+	public List<CandidateResult> locateBarcode(final Duration budget, final Rect... regions) throws IOException {
+		if (regions == null) {
+			throw new IllegalArgumentException("No regions to search, use locateBarcode() to search the whole image.");
+		}
+
+		for (int i = 0; i < regions.length; i++) {
+			if (regions[i] == null) {
+				throw new IllegalArgumentException("Region " + i + " to search is null.");
+			}
+		}
+
+		this.startSearch(budget);
+
+		final List<Rect> merged = new ArrayList<>(regions.length);
+		for (final Rect region : regions) {
+			Barcode.addWindow(merged, region);
+		}
+
+		this.searchRegions(merged);
+
+		return this.candidateBarcodes;
+	}
+
+	/**
+	 * Clears the results of the previous search and sets the deadline of the new
+	 * one.
+	 *
+	 * @param budget time allowed for the search or null for no limit
+	 */
+	private void startSearch(final Duration budget) {
+		this.candidateBarcodes.clear();
+		this.suppressedCandidates = 0;
+
+		this.hasDeadline = budget != null;
+		this.deadline = this.hasDeadline ? System.nanoTime() + budget.toNanos() : 0;
+		this.searchTruncated = false;
+	}
+
+	/**
+	 * Searches each of the regions and sorts the results of all of them best score
+	 * first.
+	 *
+	 * @param regions non-overlapping regions in original image coordinates
+	 * @throws IOException
+	 */
+	private void searchRegions(final List<Rect> regions) throws IOException {
+		for (final Rect region : regions) {
+			this.searchRegion(region);
+		}
+
+		Collections.sort(this.candidateBarcodes, CandidateResult.BEST_SCORE_FIRST);
+	}
+
+	/**
+	 * Searches the preprocessed image and adds the normalized candidates found to
+	 * candidateBarcodes.
+	 *
+	 * @throws IOException
+	 */
+	private void search() throws IOException {
+		this.foundCandidates.clear();
+
+		// Scaling may have used up the budget, the gradients are not worth starting
+		// then.
+		if (this.isPastDeadline()) {
+			return;
+		}
+
+		// Gradients and histogram integrals do not depend on the search parameters, so
+		// they are shared by all profiles.
+		this.calcGradientDirectionAndMagnitude();
+
+		for (final SearchParameters profile : this.searchProfiles) {
+			if (this.isPastDeadline()) {
+				break;
+			}
+
+			this.applySearchProfile(profile);
+
+			if (this.searchParams.tileSize > 0) {
+				this.locateBarcodeWithProfile();
+			}
+		}
+
+		// Candidates are normalized best score first, so results come out in that order
+		// and running out of time drops the worst ones. The best one is normalized even
+		// if the deadline passed while searching, so a truncated search still returns
+		// what it found.
+		final List<BarcodeCandidate> kept = Barcode.suppressDuplicates(this.foundCandidates);
+		this.suppressedCandidates += this.foundCandidates.size() - kept.size();
+		for (int i = 0; i < kept.size(); i++) {
+			if ((i > 0) && this.isPastDeadline()) {
+				break;
+			}
+
+			this.normalizeCandidate(kept.get(i));
+		}
+	}
+
+	/**
+	 * Searches only a region of the original image. The region is a view of the
+	 * original image that takes its place while searching and is scaled by the same
+	 * factor as the whole image, so gradients, histograms and tiling cost in
+	 * proportion to its area. Coordinates of the candidates found are moved back to
+	 * the whole image.
+	 *
+	 * @param region region in full resolution image coordinates, clipped to the
+	 *               image
+	 * @throws IOException
+	 */
+	private void searchRegion(final Rect region) throws IOException {
+		// srcOriginal may have been loaded at a reduced size.
+		final Mat original = this.imgDetails.srcOriginal;
+		final double resolution = this.imgDetails.resolutionScale;
+		final int left = Math.max((int) (region.x / resolution), 0);
+		final int top = Math.max((int) (region.y / resolution), 0);
+		final int right = Math.min((int) Math.ceil((region.x + region.width) / resolution), original.cols());
+		final int bottom = Math.min((int) Math.ceil((region.y + region.height) / resolution), original.rows());
+		if ((right <= left) || (bottom <= top) || this.isPastDeadline()) {
+			return;
+		}
+
+		final double scale = this.parameterRows / (1.0 * original.rows());
+		final Mat view = original.submat(top, bottom, left, right);
+		final int firstResult = this.candidateBarcodes.size();
+		final int originX = (int) Math.round(left * resolution);
+		final int originY = (int) Math.round(top * resolution);
+
+		try {
+			this.imgDetails.srcOriginal = view;
+			this.imgDetails.originX = originX;
+			this.imgDetails.originY = originY;
+			this.rows = Math.max((int) Math.round((bottom - top) * scale), 1);
+			this.cols = Math.max((int) Math.round((right - left) * scale), 1);
+			this.scaleToGrayscale();
+
+			this.search();
+		} finally {
+			// The scaled images now hold the region, the whole image is preprocessed again
+			// when it is searched.
+			this.imgDetails.srcOriginal = original;
+			this.imgDetails.originX = 0;
+			this.imgDetails.originY = 0;
+			this.rows = this.parameterRows;
+			this.cols = this.parameterCols;
+			this.preprocessed = false;
+			view.release();
+		}
+
+		for (int i = firstResult; i < this.candidateBarcodes.size(); i++) {
+			for (final Point p : this.candidateBarcodes.get(i).ROICoords) {
+				p.x += originX;
+				p.y += originY;
+			}
+		}
+	}
+
+	/**
+	 * Replaces the tracked windows with windows around the current candidates.
+	 * Overlapping windows are merged so no part of the image is searched twice.
+	 */
+	private void updateTrackedWindows() {
+		this.trackedWindows.clear();
+
+		final Rect image = new Rect(0, 0, this.imgDetails.fullCols(), this.imgDetails.fullRows());
+
+		for (final CandidateResult result : this.candidateBarcodes) {
+			double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+			double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+			for (final Point p : result.ROICoords) {
+				minX = Math.min(minX, p.x);
+				minY = Math.min(minY, p.y);
+				maxX = Math.max(maxX, p.x);
+				maxY = Math.max(maxY, p.y);
+			}
+
+			final double marginX = (maxX - minX) * Barcode.TRACKING_WINDOW_MARGIN;
+			final double marginY = (maxY - minY) * Barcode.TRACKING_WINDOW_MARGIN;
+			final int left = (int) Math.floor(minX - marginX);
+			final int top = (int) Math.floor(minY - marginY);
+			final Rect window = Barcode.intersect(new Rect(left, top, (int) Math.ceil(maxX + marginX) - left,
+					(int) Math.ceil(maxY + marginY) - top), image);
+
+			if (window != null) {
+				Barcode.addWindow(this.trackedWindows, window);
+			}
+		}
+	}
+
+	/**
+	 * Adds a window to a list of non-overlapping windows. Windows it overlaps are
+	 * removed and merged into their bounding rectangle with it.
+	 *
+	 * @param windows
+	 * @param window
+	 */
+	private static void addWindow(final List<Rect> windows, Rect window) {
+		// Merging can make a window overlap one that was checked before, so start over
+		// after every merge.
+		for (int i = 0; i < windows.size(); i++) {
+			final Rect other = windows.get(i);
+			if (Barcode.intersect(window, other) != null) {
+				windows.remove(i);
+				final int x = Math.min(window.x, other.x);
+				final int y = Math.min(window.y, other.y);
+				window = new Rect(x, y, Math.max(window.x + window.width, other.x + other.width) - x,
+						Math.max(window.y + window.height, other.y + other.height) - y);
+				i = -1;
+			}
+		}
+
+		windows.add(window);
+	}
+
+	/**
+	 * Returns the intersection of two rectangles or null if they do not overlap.
+	 *
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	private static Rect intersect(final Rect a, final Rect b) {
+		final int left = Math.max(a.x, b.x);
+		final int top = Math.max(a.y, b.y);
+		final int right = Math.min(a.x + a.width, b.x + b.width);
+		final int bottom = Math.min(a.y + a.height, b.y + b.height);
+
+		return ((right > left) && (bottom > top)) ? new Rect(left, top, right - left, bottom - top) : null;
+	}
+
+	/**
+	 * Returns the number of candidate regions the last call to locateBarcode()
+	 * dropped because they overlapped a better scored region of the same code type.
+	 *
+	 * @return
+	 */
+	public int getSuppressedCandidateCount() {
+		return this.suppressedCandidates;
 	}
 
 	/**
-	 * Actual locateBarcode algorithm must be implemented in child class.
+	 * Returns true if the last call to locateBarcode(Duration) ran out of time
+	 * before the whole image was searched.
 	 *
 	 * @return
+	 */
+	public boolean isSearchTruncated() {
+		return this.searchTruncated;
+	}
+
+	/**
+	 * Checks the deadline of the current search and marks the search as truncated
+	 * once it has passed.
+	 *
+	 * @return
+	 */
+	private boolean isPastDeadline() {
+		if ((this.hasDeadline == true) && ((System.nanoTime() - this.deadline) >= 0)) {
+			this.searchTruncated = true;
+		}
+
+		return this.searchTruncated;
+	}
+
+	/**
+	 * Runs the tiling and candidate extraction with the current search parameters.
+	 *
 	 * @throws IOException
 	 */
-	public abstract List<CandidateResult> locateBarcode() throws IOException;
+	private void locateBarcodeWithProfile() throws IOException {
+		// Tile counts are read from the integral images once at the smallest tile size,
+		// larger tile sizes are summed from them.
+		this.imgDetails.pyramid.build(this.imgDetails.histogram, this.searchParams.tileSize);
+
+		for (int tileSize = this.searchParams.tileSize; (tileSize < this.rows)
+				&& (tileSize < this.cols); tileSize *= TilePyramid.LEVEL_FACTOR) {
+			if (this.isPastDeadline()) {
+				return;
+			}
+
+			// Find areas with low variance in gradient direction.
+			this.imgDetails.probabilities = this.calcProbabilityMatrix(tileSize);
+
+			final List<MatOfPoint> contours = new ArrayList<>();
+
+			// findContours modifies source image so probabilities pass it a clone of
+			// img_details.probabilities img_details.probabilities will be used again
+			// shortly to expand the barcode region
+			final Mat contourImage = this.imgDetails.borrow(this.imgDetails.probMatRows, this.imgDetails.probMatCols,
+					CvType.CV_8U);
+			this.imgDetails.probabilities.copyTo(contourImage);
+			Imgproc.findContours(contourImage, contours, this.hierarchy, Imgproc.RETR_LIST,
+					Imgproc.CHAIN_APPROX_SIMPLE);
+			this.imgDetails.giveBack(contourImage);
+
+			final int areaMultiplier = (this.searchParams.RECT_HEIGHT * this.searchParams.RECT_WIDTH)
+					/ (this.searchParams.PROB_MAT_TILE_SIZE * this.searchParams.PROB_MAT_TILE_SIZE);
+
+			// Pictures were downsampled during probability calculation, so we multiply it
+			// by the tile size to get area in the original picture.
+			try {
+				for (int i = 0; i < contours.size(); i++) {
+					if (this.isPastDeadline()) {
+						return;
+					}
+
+					final double area = Imgproc.contourArea(contours.get(i));
+					if ((area * areaMultiplier) < this.searchParams.THRESHOLD_MIN_AREA) {
+						continue;
+					}
+
+					final MatOfPoint2f points = new MatOfPoint2f(contours.get(i).toArray());
+					final RotatedRect minRect = Imgproc.minAreaRect(points);
+					points.release();
+					final double boundingRectArea = minRect.size.width * minRect.size.height;
+
+					if (this.debugging == true) {
+						System.out.println("Area is " + (area * areaMultiplier) + "; MIN_AREA is "
+								+ this.searchParams.THRESHOLD_MIN_AREA + "; area ratio is "
+								+ ((area / boundingRectArea)));
+						System.out.println("Angle = " + minRect.angle);
+					}
+
+					// Check if contour is of a rectangular object.
+					if ((area / boundingRectArea) > this.searchParams.THRESHOLD_AREA_RATIO) {
+						this.regionScore = this.calcRegionScore(contours.get(i), area / boundingRectArea);
+						this.processCandidateRegion(minRect);
+					}
+				}
+			} finally {
+				for (final MatOfPoint contour : contours) {
+					contour.release();
+				}
+			}
+
+			if (this.debugging == true) {
+				ImageDisplay.showImageFrameGrid(this.imgDetails.srcScaled, this.fileName + " with candidate regions");
+			}
+		}
+	}
+
+	/**
+	 * Scores a contour from the mean probability of the tiles in its bounding
+	 * rectangle (before thresholding), from how far its area ratio is above
+	 * THRESHOLD_AREA_RATIO and from the density of edges under it. Must be called
+	 * while the probability buffer still holds the tile size the contour was found
+	 * with.
+	 *
+	 * @param contour   contour in probability matrix coordinates
+	 * @param areaRatio ratio of the contour area to its enclosing rectangle
+	 * @return score within 0-1, higher is better
+	 */
+	private double calcRegionScore(final MatOfPoint contour, final double areaRatio) {
+		final Rect bounds = Imgproc.boundingRect(contour);
+		final int probMatCols = this.imgDetails.probMatCols;
+		final int top = Math.max(bounds.y, 0);
+		final int bottom = Math.min(bounds.y + bounds.height, this.imgDetails.probMatRows);
+		final int left = Math.max(bounds.x, 0);
+		final int right = Math.min(bounds.x + bounds.width, probMatCols);
+
+		long probabilitySum = 0;
+		for (int r = top; r < bottom; r++) {
+			for (int c = left; c < right; c++) {
+				probabilitySum += this.imgDetails.probabilityBuffer[(r * probMatCols) + c] & 0xFF;
+			}
+		}
+		final int probabilityCount = Math.max((bottom - top) * (right - left), 1);
+		final double probability = probabilitySum / (255.0 * probabilityCount);
+
+		final double threshold = this.searchParams.THRESHOLD_AREA_RATIO;
+		final double areaScore = Math.max(0, Math.min(1, (areaRatio - threshold) / (1 - threshold)));
+
+		// Edge density is counted in the scaled image the integral images were built
+		// from.
+		final double scaleFactor = this.searchParams.scaleFactor;
+		final int scaledTop = (int) (top / scaleFactor);
+		final int scaledBottom = (int) Math.ceil(bottom / scaleFactor);
+		final int scaledLeft = (int) (left / scaleFactor);
+		final int scaledRight = (int) Math.ceil(right / scaleFactor);
+		final IntegralHistogram histogram = this.imgDetails.histogram;
+		final int edges = histogram.rectSum(histogram.edges, scaledTop, scaledBottom, scaledLeft, scaledRight);
+		final int pixels = (Math.min(scaledBottom, histogram.rows) - scaledTop)
+				* (Math.min(scaledRight, histogram.cols) - scaledLeft);
+		final double edgeDensity = (pixels > 0) ? Math.min(1, edges / (double) pixels) : 0;
+
+		return (Barcode.SCORE_PROBABILITY_WEIGHT * probability) + (Barcode.SCORE_AREA_RATIO_WEIGHT * areaScore)
+				+ (Barcode.SCORE_EDGE_DENSITY_WEIGHT * edgeDensity);
+	}
+
+	/**
+	 * Called for every candidate region found by locateBarcode(). Child classes
+	 * create the kind of BarcodeCandidate they search for and pass it to
+	 * addCandidate().
+	 *
+	 * @param minRect candidate region in probability matrix coordinates
+	 * @throws IOException
+	 */
+	protected abstract void processCandidateRegion(RotatedRect minRect) throws IOException;
+
+	/**
+	 * Adds a candidate region found with the current search parameters. It is
+	 * normalized and added to the candidate barcodes, tagged with the type of the
+	 * candidate, once the whole image has been searched and unless a better scored
+	 * region of the same type overlaps it.
+	 *
+	 * @param candidate
+	 * @param angle     rotation angle or USE_ROTATED_RECT_ANGLE
+	 * @throws IOException
+	 */
+	protected void addCandidate(final BarcodeCandidate candidate, final double angle) throws IOException {
+		candidate.angle = angle;
+		candidate.score = this.regionScore;
+		this.foundCandidates.add(candidate);
+
+		if (this.debugging == true) {
+			candidate.markCandidateRegion(new Scalar(0, 255, 128), this.imgDetails.srcScaled);
+		}
+	}
+
+	/**
+	 * Non-maximum suppression of the found candidates: going from the best score
+	 * down, a candidate is kept unless it overlaps an already kept candidate of the
+	 * same code type by more than DUPLICATE_OVERLAP_RATIO. Catches the same barcode
+	 * found at several tile sizes, by several profiles and as nested contours.
+	 *
+	 * @param found candidates in any order
+	 * @return kept candidates, best score first, the others were suppressed
+	 */
+	static List<BarcodeCandidate> suppressDuplicates(final List<BarcodeCandidate> found) {
+		final List<BarcodeCandidate> sorted = new ArrayList<>(found);
+		Collections.sort(sorted, BarcodeCandidate.BEST_SCORE_FIRST);
+
+		final List<BarcodeCandidate> kept = new ArrayList<>(sorted.size());
+		final MatOfPoint2f intersection = new MatOfPoint2f();
+
+		for (final BarcodeCandidate candidate : sorted) {
+			boolean duplicate = false;
+
+			for (final BarcodeCandidate other : kept) {
+				if ((other.codeType == candidate.codeType) && (Barcode.calcOverlap(candidate.candidateRegion,
+						other.candidateRegion, intersection) > Barcode.DUPLICATE_OVERLAP_RATIO)) {
+					duplicate = true;
+					break;
+				}
+			}
+
+			if (duplicate == false) {
+				kept.add(candidate);
+			}
+		}
+
+		intersection.release();
+
+		return kept;
+	}
+
+	/**
+	 * Calculates intersection over union of two rotated rectangles.
+	 *
+	 * @param a
+	 * @param b
+	 * @param intersection workspace for the intersection polygon
+	 * @return
+	 */
+	private static double calcOverlap(final RotatedRect a, final RotatedRect b, final MatOfPoint2f intersection) {
+		// Most pairs are far apart, their bounding rectangles rule them out without a
+		// call into OpenCV.
+		final Rect boundsA = a.boundingRect();
+		final Rect boundsB = b.boundingRect();
+		if ((boundsA.x >= (boundsB.x + boundsB.width)) || (boundsB.x >= (boundsA.x + boundsA.width))
+				|| (boundsA.y >= (boundsB.y + boundsB.height)) || (boundsB.y >= (boundsA.y + boundsA.height))) {
+			return 0;
+		}
+
+		if (Imgproc.rotatedRectangleIntersection(a, b, intersection) == Imgproc.INTERSECT_NONE) {
+			return 0;
+		}
+
+		final double intersectionArea = Imgproc.contourArea(intersection);
+		final double union = ((a.size.width * a.size.height) + (b.size.width * b.size.height)) - intersectionArea;
+
+		return (union > 0) ? intersectionArea / union : 0;
+	}
+
+	/**
+	 * Normalizes a candidate region and adds the result to the candidate barcodes.
+	 *
+	 * @param candidate
+	 * @throws IOException
+	 */
+	private void normalizeCandidate(final BarcodeCandidate candidate) throws IOException {
+		final CandidateResult ROI = candidate.normalizeCandidateRegion(candidate.angle);
+		if (this.postProcessResizeBarcode == true) {
+			final Mat scaled = this.scale(ROI.ROI);
+			if (scaled != ROI.ROI) {
+				MatTracker.release(ROI.ROI);
+				ROI.ROI = scaled;
+			}
+		}
+
+		ROI.codeType = candidate.codeType;
+		ROI.score = candidate.score;
+		this.candidateBarcodes.add(ROI);
+
+		if (this.debugging == true) {
+			candidate.markCandidateRegion(new Scalar(0, 0, 255), this.imgDetails.srcScaled);
+		}
+	}
+
+	/**
+	 * Calculates magnitudes and directions of gradients in the image. Results are
+	 * stored in appropriate matrices in img_details object.
+	 */
+	protected void calcGradientDirectionAndMagnitude() {
+		// The grayscale image may be a view of a larger matrix, BORDER_ISOLATED keeps
+		// the filter from reading pixels outside of it.
+		Imgproc.Scharr(this.imgDetails.srcGrayscale, this.imgDetails.scharrX, CvType.CV_32F, 1, 0, 1, 0,
+				Core.BORDER_REFLECT_101 | Core.BORDER_ISOLATED);
+		Imgproc.Scharr(this.imgDetails.srcGrayscale, this.imgDetails.scharrY, CvType.CV_32F, 0, 1, 1, 0,
+				Core.BORDER_REFLECT_101 | Core.BORDER_ISOLATED);
+
+		// Directions are folded to 0-170, offset by 1 and set to DUMMY_ANGLE where
+		// there is no edge straight from the derivatives, without intermediate
+		// matrices, so the histogram calculation only counts edges.
+		this.imgDetails.gradients.calculate(this.imgDetails.scharrX, this.imgDetails.scharrY);
+
+		// Calculate integral images of edge density and of each gradient direction bin.
+		this.imgDetails.histogram.calculate(this.imgDetails.gradients);
+
+		if (this.debugging == true) {
+			this.imgDetails.gradients.copyTo(this.imgDetails.gradientDirection, this.imgDetails.gradientMagnitude);
+			Barcode.writeMat("magnitudes.csv", this.imgDetails.gradientMagnitude);
+			Barcode.writeMat("angles_modified.csv", this.imgDetails.gradientDirection);
+		}
+	}
+
+	/**
+	 * Calculate probability of a barcode region in each tile based on HOG data for
+	 * each tile.
+	 *
+	 * @param tileSize
+	 * @return
+	 * @throws IOException
+	 */
+	protected Mat calcProbabilityMatrix(final int tileSize) throws IOException {
+		// Calculate probabilities for each pixel from window around it, normalize and
+		// threshold.
+		final Mat probabilities = this.calcProbabilityTilings(tileSize);
+
+		final double debugProbThreshold = Imgproc.threshold(probabilities, probabilities, 128, 255,
+				Imgproc.THRESH_BINARY);
+
+		if (this.debugging == true) {
+			System.out.println("Probability threshold is " + debugProbThreshold);
+
+			Barcode.writeMat("probabilities.csv", probabilities);
+
+			ImageDisplay.showImageFrameGrid(this.imgDetails.gradientMagnitude, "Magnitudes");
+			ImageDisplay.showImageFrameGrid(probabilities, "histogram probabilities");
+		}
+
+		return probabilities;
+	}
 
 	/**
 	 * Pre-process image to convert to grayscale and do morph black hat. It also
-	 * resizes image if it is above a specified size and sets the search parameters
-	 * based on image size.
+	 * resizes image if it is above a specified size. It is only done once per
+	 * image, however many search profiles are used.
 	 */
 	protected void preprocessImage() {
-		// Shrink the image if it is above a certain size. It reduces image size for
-		// large images which helps with
-		// processing speed and reducing sensitivity to barcode size within the image.
-		if (this.rows > this.searchParams.MAX_ROWS) {
-			this.cols = (int) (this.cols * ((this.searchParams.MAX_ROWS * 1.0) / this.rows));
-			this.rows = this.searchParams.MAX_ROWS;
-			this.imgDetails.srcScaled = new Mat(this.rows, this.cols, CvType.CV_32F);
-			Imgproc.resize(this.imgDetails.srcOriginal, this.imgDetails.srcScaled, this.imgDetails.srcScaled.size(), 0,
-					0, Imgproc.INTER_AREA);
+		if (this.preprocessed == true) {
+			return;
 		}
 
-		if (this.imgDetails.srcScaled == null) {
-			this.imgDetails.srcScaled = this.imgDetails.srcOriginal.clone();
+		this.calcScaledSize();
+		this.scaleToGrayscale();
+
+		this.preprocessed = true;
+	}
+
+	/**
+	 * Sets rows and cols to the size srcOriginal is scaled to for the search, and
+	 * the search parameters are derived from, without scaling it.
+	 */
+	private void calcScaledSize() {
+		this.rows = this.imgDetails.srcOriginal.rows();
+		this.cols = this.imgDetails.srcOriginal.cols();
+
+		// Images of known resolution are scaled to the target resolution, so barcodes
+		// of the same physical size get the same size in pixels whatever the source.
+		final double resolution = this.imageResolution / this.imgDetails.resolutionScale;
+		final double target = this.targetResolution;
+		this.scaledToResolution = (target > 0) && (resolution >= target);
+
+		// Otherwise shrink the image if it is above a certain size. It reduces image
+		// size for large images which helps with
+		// processing speed and reducing sensitivity to barcode size within the image.
+		final int maxRows = this.searchProfiles.get(0).MAX_ROWS;
+		if (this.scaledToResolution == true) {
+			this.rows = Math.max((int) (this.rows * (target / resolution)), 1);
+			this.cols = Math.max((int) (this.cols * (target / resolution)), 1);
+		} else if (this.rows > maxRows) {
+			this.cols = (int) (this.cols * ((maxRows * 1.0) / this.rows));
+			this.rows = maxRows;
 		}
 
-		this.searchParams.setImageSpecificParameters(this.rows, this.cols);
+		this.parameterRows = this.rows;
+		this.parameterCols = this.cols;
+	}
 
-		// Do pre-processing to increase contrast.
-		this.imgDetails.initializeMats(this.rows, this.cols, this.searchParams);
+	/**
+	 * Scales srcOriginal to rows x cols into srcScaled and converts it to
+	 * grayscale. Single channel images are already grayscale, srcScaled is then a
+	 * view of srcGrayscale and the conversion is skipped.
+	 */
+	private void scaleToGrayscale() {
+		this.imgDetails.allocateScaledMats(this.rows, this.cols);
+		if ((this.rows != this.imgDetails.srcOriginal.rows()) || (this.cols != this.imgDetails.srcOriginal.cols())) {
+			Imgproc.resize(this.imgDetails.srcOriginal, this.imgDetails.srcScaled, this.imgDetails.srcScaled.size(), 0,
+					0, Imgproc.INTER_AREA);
+		} else {
+			this.imgDetails.srcOriginal.copyTo(this.imgDetails.srcScaled);
+		}
 
-		Imgproc.cvtColor(this.imgDetails.srcScaled, this.imgDetails.srcGrayscale, Imgproc.COLOR_RGB2GRAY);
+		if (this.imgDetails.srcOriginal.channels() != 1) {
+			Imgproc.cvtColor(this.imgDetails.srcScaled, this.imgDetails.srcGrayscale, Imgproc.COLOR_RGB2GRAY);
+		}
 	}
 
 	/**
@@ -222,7 +1210,7 @@ public abstract class Barcode {
 			num_rows = MIN_ROWS;
 		}
 
-		final Mat result = Mat.zeros(num_rows, num_cols, candidate.type());
+		final Mat result = MatTracker.track(Mat.zeros(num_rows, num_cols, candidate.type()));
 
 		Imgproc.resize(candidate, result, result.size(), 0, 0, Imgproc.INTER_CUBIC);
 
@@ -230,59 +1218,158 @@ public abstract class Barcode {
 	}
 
 	/**
-	 * Connect large components by doing morph close followed by morph open use
-	 * larger element size for erosion to remove small elements joined by dilation.
+	 * Calculates probability of each tile being in a barcode region.
+	 *
+	 * @param tileSize
+	 * @return
+	 * @throws InterruptedIOException if interrupted while waiting for the parallel
+	 *                                calculation
 	 */
-	protected void connectComponents() {
-		int shape = Imgproc.MORPH_ELLIPSE;
-		if (this.searchParams.isVerySmallMatrix == true) {
-			// Test out slightly different process for small codes in a large image.
-			shape = Imgproc.MORPH_RECT;
+	protected Mat calcProbabilityTilings(final int tileSize) throws InterruptedIOException {
+		// Tiles must be square.
+		assert (this.searchParams.RECT_HEIGHT == this.searchParams.RECT_WIDTH) : "RECT_HEIGHT and RECT_WIDTH must be equal in searchParams imageSpecificParams";
+
+		final TilePyramid.Level level = this.imgDetails.pyramid.level(tileSize);
+		final int tileRows = level.rows;
+		final int tileCols = level.cols;
+
+		final byte[] probabilities = this.imgDetails.probabilityBuffer;
+		final int probabilityCount = this.imgDetails.probMatRows * this.imgDetails.probMatCols;
+		Arrays.fill(probabilities, 0, probabilityCount, (byte) 0);
+
+		if ((this.tilingExecutor == null) || (tileRows < 2)
+				|| ((tileRows * tileCols) < Barcode.PARALLEL_TILING_MIN_TILES)) {
+			this.calcProbabilityBand(level, 0, tileRows, probabilities, this.imgDetails.histArray);
+		} else {
+			final int bandCount = Math.min(tileRows, Runtime.getRuntime().availableProcessors() * 4);
+			final List<Callable<Void>> bands = new ArrayList<>(bandCount);
+
+			for (int band = 0; band < bandCount; band++) {
+				final int firstTileRow = (tileRows * band) / bandCount;
+				final int lastTileRow = (tileRows * (band + 1)) / bandCount;
+
+				bands.add(() -> {
+					this.calcProbabilityBand(level, firstTileRow, lastTileRow, probabilities,
+							new int[ImageInfo.bins]);
+					return null;
+				});
+			}
+
+			try {
+				for (final Future<Void> band : this.tilingExecutor.invokeAll(bands)) {
+					band.get();
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while calculating tile probabilities.");
+			} catch (final ExecutionException e) {
+				// Bands only throw unchecked exceptions, rethrow them as if the calculation had
+				// run in this thread.
+				final Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				throw new IllegalStateException("Calculating tile probabilities failed: " + cause.getMessage(), cause);
+			}
 		}
 
-		final Mat small_elemSE = Imgproc.getStructuringElement(shape, this.searchParams.elementSize);
-		final Mat large_elemSE = Imgproc.getStructuringElement(shape, this.searchParams.largeElementSize);
+		this.imgDetails.probabilities.put(0, 0, probabilities, 0, probabilityCount);
 
-		Imgproc.dilate(this.imgDetails.probabilities, this.imgDetails.probabilities, small_elemSE);
-		Imgproc.erode(this.imgDetails.probabilities, this.imgDetails.probabilities, large_elemSE);
+		return this.imgDetails.probabilities;
+	}
 
-		Imgproc.erode(this.imgDetails.probabilities, this.imgDetails.probabilities, small_elemSE);
-		Imgproc.dilate(this.imgDetails.probabilities, this.imgDetails.probabilities, large_elemSE);
+	/**
+	 * Calculates probabilities of the tiles in rows [firstTileRow, lastTileRow) of
+	 * the tile grid and writes them to the matching rows of the probability buffer.
+	 *
+	 * @param level         tile counts for the tile size being searched
+	 * @param firstTileRow
+	 * @param lastTileRow
+	 * @param probabilities
+	 * @param hist          buffer for the tile histograms, one per thread
+	 */
+	private void calcProbabilityBand(final TilePyramid.Level level, final int firstTileRow, final int lastTileRow,
+			final byte[] probabilities, final int[] hist) {
+		final int tileSize = level.tileSize;
+		final int probMatTileSize = (int) (tileSize
+				* (this.searchParams.PROB_MAT_TILE_SIZE / (1.0 * this.searchParams.tileSize)));
+		final int thresholdMinGradientEdges = (int) (tileSize * tileSize
+				* this.searchParams.THRESHOLD_MIN_GRADIENT_EDGES_MULTIPLIER);
+
+		final int probMatRows = this.imgDetails.probMatRows;
+		final int probMatCols = this.imgDetails.probMatCols;
+
+		int prob_mat_right_col, prob_mat_bottom_row;
+		int tile;
+		byte prob;
+
+		for (int tileRow = firstTileRow; tileRow < lastTileRow; tileRow++) {
+			final int row_offset = tileRow * probMatTileSize;
+
+			// First do bounds checking for bottom right of tiles.
+			prob_mat_bottom_row = Math.min((row_offset + probMatTileSize), probMatRows);
+
+			for (int tileCol = 0, col_offset = 0; tileCol < level.cols; tileCol++, col_offset += probMatTileSize) {
+				prob_mat_right_col = Math.min((col_offset + probMatTileSize), probMatCols);
+
+				// Number of edges is the first count of every tile.
+				tile = ((tileRow * level.cols) + tileCol) * TilePyramid.CHANNELS;
+
+				if (level.counts[tile] < thresholdMinGradientEdges) {
+					// If gradient density is below the threshold level, prob of barcode in this
+					// tile is 0.
+					continue;
+				}
+
+				System.arraycopy(level.counts, tile + 1, hist, 0, ImageInfo.bins);
+
+				prob = (byte) (int) (Barcode.calcTileProbability(hist) * 255);
+
+				for (int r = row_offset; r < prob_mat_bottom_row; r++) {
+					Arrays.fill(probabilities, (r * probMatCols) + col_offset, (r * probMatCols) + prob_mat_right_col,
+							prob);
+				}
+			}
+		}
 	}
 
 	/**
-	 * Calculates sum of values within a rectangle from a given integral image.
+	 * Calculates probability of a tile being in a barcode region from the histogram
+	 * of its gradient directions. Formula is modified from Szentandrasi, Herout,
+	 * Dubska paper pp. 4.
+	 *
+	 * The two highest bins are picked in the same order Core.sortIdx with
+	 * SORT_DESCENDING puts them, i.e. of two equal bins the one with the higher
+	 * index comes first. Nothing is allocated so it is safe to call for every tile.
 	 *
-	 * @param integral
-	 * @param top_row
-	 * @param bottom_row
-	 * @param left_col
-	 * @param right_col
+	 * @param hist
 	 * @return
 	 */
-	protected double calculateRectSum(final Mat integral, final int top_row, int bottom_row, final int left_col,
-			int right_col) {
-		// if the right col or bottom row falls outside the image bounds, sets it to max
-		// col and max row
-		// in actuality, top_row - 1 and left_col - 1 are used - see p. 185 of Learning
-		// OpenCV ed. 1 by Gary Bradski for an
-		// explanation
-		// if top_row or left_col are outside image boundaries, it uses 0 for their
-		// value
-		// this is useful when one part of the rectangle lies outside the image bounds
-		final int numRows = integral.rows();
-		final int numCols = integral.cols();
+	protected static double calcTileProbability(final int[] hist) {
+		int max_angle_idx = 0;
+		int second_highest_angle_idx = -1;
 
-		// Do bounds checking on provided parameters.
-		bottom_row = java.lang.Math.min(bottom_row, numRows);
-		right_col = java.lang.Math.min(right_col, numCols);
+		for (int r = 1; r < hist.length; r++) {
+			if (hist[r] >= hist[max_angle_idx]) {
+				second_highest_angle_idx = max_angle_idx;
+				max_angle_idx = r;
+			} else if ((second_highest_angle_idx < 0) || (hist[r] >= hist[second_highest_angle_idx])) {
+				second_highest_angle_idx = r;
+			}
+		}
+
+		if (Math.abs(max_angle_idx - second_highest_angle_idx) == 1) {
+			return 0;
+		}
 
-		final double bottom_right = integral.get(bottom_row, right_col)[0];
-		final double top_right = (top_row < 0) ? 0 : integral.get(top_row, right_col)[0];
-		final double top_left = ((left_col < 0) || (top_row < 0)) ? 0 : integral.get(top_row, left_col)[0];
-		final double bottom_left = (left_col < 0) ? 0 : integral.get(bottom_row, left_col)[0];
+		final int max_angle_count = hist[max_angle_idx];
+		final int second_highest_angle_count = hist[second_highest_angle_idx];
 
-		return ((bottom_right - bottom_left - top_right) + top_left);
+		return (2.0 * Math.min(max_angle_count, second_highest_angle_count))
+				/ (max_angle_count + second_highest_angle_count);
 	}
 
 	/**
@@ -302,13 +1389,89 @@ public abstract class Barcode {
 		}
 	}
 
-	protected Mat loadImage() throws IOException {
+	protected Mat loadImage(final LoadMode mode) throws IOException {
 		final File file = new File(this.fileName);
 		if (file.isFile() == false) {
 			throw new IOException(this.fileName + " isn't a file.");
 		}
 
-		return Imgcodecs.imread(this.fileName, Imgcodecs.IMREAD_COLOR);
+		if (this.targetResolution > 0) {
+			this.imageResolution = ImageResolution.read(file);
+		}
+
+		if (mode.isSubsampled() == true) {
+			final SourceImage.RegionReader reader = SourceImage.RegionReader.open(file);
+			// Every factor-th pixel still leaves as many pixels along the shorter side as the
+			// search needs.
+			final int shortSide = (reader == null) ? 0 : Math.min(reader.getWidth(), reader.getHeight());
+			final int factor = (reader == null) ? 1 : shortSide / this.calcRequiredSize(shortSide);
+			if (factor > 1) {
+				this.imgDetails.fullSource = reader;
+				this.imgDetails.resolutionScale = factor;
+				try {
+					return reader.readSubsampled(factor);
+				} catch (final IOException | RuntimeException e) {
+					this.imgDetails.releaseFullSource();
+					throw e;
+				}
+			}
+
+			if (reader != null) {
+				reader.release();
+			}
+		} else if (mode.isReduced() == true) {
+			final int factor = this.calcReductionFactor(file);
+			if (factor > 1) {
+				this.imgDetails.fullSource = new SourceImage.DecodedFile(this.fileName, mode.flag());
+				this.imgDetails.resolutionScale = factor;
+				return MatTracker.track(Imgcodecs.imread(this.fileName, mode.reducedFlag(factor)));
+			}
+		}
+
+		return MatTracker.track(Imgcodecs.imread(this.fileName, mode.flag()));
+	}
+
+	/**
+	 * Picks the largest of the reductions 8, 4 and 2 that leaves the shorter side
+	 * of the image with at least as many pixels as the search needs, from the size
+	 * in the header of the file. The shorter side is used as imread may rotate the
+	 * image by its EXIF orientation.
+	 *
+	 * @param file
+	 * @return reduction factor or 1 to load the image at full resolution
+	 * @throws IOException
+	 */
+	private int calcReductionFactor(final File file) throws IOException {
+		final Dimension size = SourceImage.readSize(file);
+		if (size == null) {
+			return 1;
+		}
+
+		final int shortSide = Math.min(size.width, size.height);
+		final int required = this.calcRequiredSize(shortSide);
+		int factor = 8;
+		while ((factor > 1) && ((shortSide / factor) < required)) {
+			factor /= 2;
+		}
+
+		return factor;
+	}
+
+	/**
+	 * Returns the number of pixels the search needs along a side of the image:
+	 * what is left of it at the target resolution, or MAX_ROWS if the image is not
+	 * scaled by its resolution.
+	 *
+	 * @param side number of pixels along the side at full resolution
+	 * @return
+	 */
+	private int calcRequiredSize(final int side) {
+		final double target = this.targetResolution;
+		if ((target > 0) && (this.imageResolution >= target)) {
+			return Math.max((int) Math.ceil((side * target) / this.imageResolution), 1);
+		}
+
+		return SearchParameters.DEFAULT_MAX_ROWS;
 	}
 
 }
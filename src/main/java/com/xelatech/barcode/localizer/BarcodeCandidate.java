@@ -1,20 +1,26 @@
 package com.xelatech.barcode.localizer;
 
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Comparator;
 
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
+import org.opencv.core.Rect;
 import org.opencv.core.RotatedRect;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
 
-class BarcodeCandidate
+abstract class BarcodeCandidate
 {
   protected ImageInfo imgDetails;
 
+  protected Barcode.CodeType codeType;
+
   protected RotatedRect candidateRegion;
 
   protected int num_blanks;
@@ -26,26 +32,198 @@ class BarcodeCandidate
    */
   protected int threshold;
 
-  private static Compare_x x_comparator = null;
+  /**
+   * Rotation angle passed to normalizeCandidateRegion() once the candidate is kept.
+   */
+  double angle;
 
-  private static Compare_y y_comparator = null;
+  /**
+   * Score of the contour the candidate was found from, higher is better.
+   */
+  double score;
 
-  protected static final Scalar ZERO_SCALAR = new Scalar(0);
+  /**
+   * Pixels read around a candidate region beyond its corners, enough for the output border and cubic interpolation.
+   */
+  private static final int SOURCE_MARGIN = 4;
 
+  private static final Compare_x x_comparator = new Compare_x();
 
-  protected BarcodeCandidate(final ImageInfo imgDetails, final RotatedRect minRect, final SearchParameters params)
+  private static final Compare_y y_comparator = new Compare_y();
+
+  /**
+   * Orders candidates by descending score.
+   */
+  static final Comparator<BarcodeCandidate> BEST_SCORE_FIRST = new Comparator<BarcodeCandidate>()
+  {
+    @Override
+    public int compare(final BarcodeCandidate a, final BarcodeCandidate b)
+    {
+      return Double.compare(b.score, a.score);
+    }
+  };
+
+
+  protected BarcodeCandidate(final ImageInfo imgDetails, final RotatedRect minRect, final SearchParameters params,
+      final Barcode.CodeType codeType)
   {
     this.imgDetails = imgDetails;
     this.candidateRegion = minRect;
+    this.codeType = codeType;
 
     this.params = params;
 
     // Set threshold for number of blanks around barcode based on whether it is linear or 2D code.
-    this.threshold = (imgDetails.searchType == Barcode.CodeType.LINEAR) ? params.NUM_BLANKS_THRESHOLD
+    this.threshold = (codeType == Barcode.CodeType.LINEAR) ? params.NUM_BLANKS_THRESHOLD
         : params.MATRIX_NUM_BLANKS_THRESHOLD;
   }
 
 
+  /**
+   * Returns the cropped and straightened candidate region from the *original* image, not the scaled image. The region
+   * is expanded by one tile on each side to capture the entire code including the border zone. Corners of the region
+   * are rotated by the angle to find out which of them becomes the top left etc. of the output, and the output is then
+   * sampled from the original image with a single perspective transform from those corners, so no intermediate rotated
+   * image is created.
+   *
+   * @param angle rotation angle or Barcode.USE_ROTATED_RECT_ANGLE to estimate it from the region
+   * @return
+   * @throws IOException if the full resolution image cannot be decoded
+   */
+  public CandidateResult normalizeCandidateRegion(final double angle) throws IOException
+  {
+    // Scale candidate region back up to original size to return cropped part from *original* image.
+    // Need the 1.0 there to force floating-point arithmetic from integer values.
+    final double scaleFactor = (this.imgDetails.srcOriginal.rows() * this.imgDetails.resolutionScale)
+        / this.imgDetails.srcGrayscale.rows();
+
+    // Expand the region found - this helps capture the entire code including the border zone.
+    this.candidateRegion.size.width += 2 * this.params.RECT_WIDTH;
+    this.candidateRegion.size.height += 2 * this.params.RECT_HEIGHT;
+
+    // Calculate location of rectangle in original image and its corner points.
+    final RotatedRect scaledRegion = new RotatedRect(
+        new Point(this.candidateRegion.center.x * scaleFactor, this.candidateRegion.center.y * scaleFactor),
+        new Size(this.candidateRegion.size.width * scaleFactor, this.candidateRegion.size.height * scaleFactor),
+        this.candidateRegion.angle);
+
+    final Point[] corners = new Point[4];
+    scaledRegion.points(corners);
+
+    // Lets get the coordinates of the ROI in the original image and save it.
+    final CandidateResult result = new CandidateResult();
+    result.ROICoords = Arrays.copyOf(corners, 4);
+
+    final double rotationAngle = (angle == Barcode.USE_ROTATED_RECT_ANGLE) ? this.estimateBarcodeOrientation()
+        : angle;
+
+    // Rotate corners about the centre of the region, same as getRotationMatrix2D and warpAffine would.
+    final Point centre = scaledRegion.center;
+    for(int r = 0; r < 4; r++)
+    {
+      corners[r] = BarcodeCandidate.rotatePoint(corners[r], centre, rotationAngle);
+    }
+
+    // Sort rectangles points in order by first sorting all 4 points based on x. Then sort the first two based on y and
+    // then the next two based on y. This leaves the array in order top-left, bottom-left, top-right, bottom-right.
+    Arrays.sort(corners, BarcodeCandidate.get_x_comparator());
+    Arrays.sort(corners, 0, 2, BarcodeCandidate.get_y_comparator());
+    Arrays.sort(corners, 2, 4, BarcodeCandidate.get_y_comparator());
+
+    // Calculate height and width of rectangular region.
+    final double height = this.length(corners[1], corners[0]);
+    final double width = this.length(corners[2], corners[0]);
+
+    // Rotate the sorted corners back to where they are in the original image and map them straight to the output.
+    final Point[] sourcePoints = new Point[4];
+    for(int r = 0; r < 4; r++)
+    {
+      sourcePoints[r] = BarcodeCandidate.rotatePoint(corners[r], centre, -rotationAngle);
+    }
+
+    final MatOfPoint2f destinationPoints = new MatOfPoint2f(new Point(0, 0), new Point(0, height), new Point(width, 0),
+        new Point(width, height));
+
+    // Only the part of the image under the region is needed. It is read at full resolution if srcOriginal was loaded at
+    // a reduced size, and the source points are moved to its corner.
+    final Mat source = this.readSourceRegion(sourcePoints);
+
+    final MatOfPoint2f sourceMat = new MatOfPoint2f(sourcePoints);
+    final Mat perspectiveTransform = Imgproc.getPerspectiveTransform(sourceMat, destinationPoints);
+    final Mat perspectiveOut = MatTracker.track(new Mat((int)height + 2, (int)width + 2, source.type()));
+    Imgproc.warpPerspective(source, perspectiveOut, perspectiveTransform, perspectiveOut.size(), Imgproc.INTER_CUBIC);
+
+    MatTracker.release(source);
+    sourceMat.release();
+    destinationPoints.release();
+    perspectiveTransform.release();
+
+    result.ROI = perspectiveOut;
+
+    return result;
+  }
+
+
+  /**
+   * Returns the full resolution pixels under the given points, with a margin for the interpolation, and moves the
+   * points to the corner of the returned matrix. The full resolution image may end a few pixels before fullCols() and
+   * fullRows(), so the corner is the one of the rectangle actually read.
+   *
+   * @param points in full resolution coordinates of srcOriginal, moved in place
+   * @return
+   * @throws IOException
+   */
+  private Mat readSourceRegion(final Point[] points) throws IOException
+  {
+    double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+    double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+    for(final Point p : points)
+    {
+      minX = Math.min(minX, p.x);
+      minY = Math.min(minY, p.y);
+      maxX = Math.max(maxX, p.x);
+      maxY = Math.max(maxY, p.y);
+    }
+
+    final int fullCols = this.imgDetails.fullCols();
+    final int fullRows = this.imgDetails.fullRows();
+    final int left = Math.min(Math.max((int)Math.floor(minX) - BarcodeCandidate.SOURCE_MARGIN, 0), fullCols - 1);
+    final int top = Math.min(Math.max((int)Math.floor(minY) - BarcodeCandidate.SOURCE_MARGIN, 0), fullRows - 1);
+    final int right = Math.max(Math.min((int)Math.ceil(maxX) + BarcodeCandidate.SOURCE_MARGIN, fullCols), left + 1);
+    final int bottom = Math.max(Math.min((int)Math.ceil(maxY) + BarcodeCandidate.SOURCE_MARGIN, fullRows), top + 1);
+
+    final Rect region = new Rect(left, top, right - left, bottom - top);
+    final Mat source = this.imgDetails.readFullResolution(region);
+
+    for(int r = 0; r < points.length; r++)
+    {
+      points[r] = new Point(points[r].x - region.x, points[r].y - region.y);
+    }
+
+    return source;
+  }
+
+
+  /**
+   * Rotates a point about a centre, counter-clockwise for positive angles in image coordinates like
+   * getRotationMatrix2D.
+   *
+   * @param p
+   * @param centre
+   * @param angle in degrees
+   * @return
+   */
+  protected static Point rotatePoint(final Point p, final Point centre, final double angle)
+  {
+    final double alpha = Math.cos(Math.toRadians(angle));
+    final double beta = Math.sin(Math.toRadians(angle));
+    final double x = p.x - centre.x;
+    final double y = p.y - centre.y;
+
+    return new Point(centre.x + (alpha * x) + (beta * y), (centre.y - (beta * x)) + (alpha * y));
+  }
+
+
   /**
    * Convenience function to draw outline of candidate region on image.
    *
@@ -103,31 +281,17 @@ class BarcodeCandidate
   }
 
 
-  protected static void updatePoint(final Point p, final double newX, final double newY)
-  {
-    p.x = newX;
-    p.y = newY;
-  }
 
 
   protected static Compare_x get_x_comparator()
   {
-    // factory method to return one instance of a Compare_x object
-    if(BarcodeCandidate.x_comparator == null)
-    {
-      BarcodeCandidate.x_comparator = new Compare_x();
-    }
+    // Comparators are stateless, so one instance is shared by all threads.
     return BarcodeCandidate.x_comparator;
   }
 
 
   protected static Compare_y get_y_comparator()
   {
-    // factory method to return one instance of a Compare_x object
-    if(BarcodeCandidate.y_comparator == null)
-    {
-      BarcodeCandidate.y_comparator = new Compare_y();
-    }
     return BarcodeCandidate.y_comparator;
   }
 
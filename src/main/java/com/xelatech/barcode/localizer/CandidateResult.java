@@ -2,18 +2,72 @@ package com.xelatech.barcode.localizer;
 
 
 import java.awt.image.BufferedImage;
+import java.util.Comparator;
 
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
 
 
-public class CandidateResult
+public class CandidateResult implements AutoCloseable
 {
   public Mat ROI;
 
   public Point[] ROICoords;
 
-  public BufferedImage candidate;
+  /**
+   * Created from ROI by getCandidate() the first time it is called.
+   */
+  private BufferedImage candidate;
+
+  /**
+   * Kind of barcode the region was extracted as.
+   */
+  public Barcode.CodeType codeType;
+
+  /**
+   * How likely the region is to hold a barcode, within 0-1 and higher is better. Combines the tile probabilities, the
+   * area ratio of the region's contour and its edge density.
+   */
+  public double score;
+
+  /**
+   * Orders results by descending score. Stateless, so it can be shared by all threads.
+   */
+  public static final Comparator<CandidateResult> BEST_SCORE_FIRST = new Comparator<CandidateResult>()
+  {
+    @Override
+    public int compare(final CandidateResult a, final CandidateResult b)
+    {
+      return Double.compare(b.score, a.score);
+    }
+  };
+
+
+  /**
+   * Returns the ROI as a BufferedImage. It is only created when first asked for, so callers that decode straight from
+   * the ROI Mat never pay for the conversion.
+   *
+   * @return
+   */
+  public BufferedImage getCandidate()
+  {
+    if(this.candidate == null)
+    {
+      this.candidate = ImageDisplay.getBufImg(this.ROI);
+    }
+
+    return this.candidate;
+  }
+
+
+  /**
+   * Frees the native memory of the ROI. getCandidate() still works afterwards if it has been called before.
+   */
+  @Override
+  public void close()
+  {
+    MatTracker.release(this.ROI);
+  }
 
 
   public String getROICoords()
@@ -0,0 +1,47 @@
+package com.xelatech.barcode.localizer;
+
+
+import java.io.IOException;
+
+import org.opencv.core.Mat;
+import org.opencv.core.RotatedRect;
+
+
+/**
+ * Searches for linear and matrix barcodes at the same time. Gradients, histogram integrals and tile probabilities are
+ * the same for both kinds of barcode, so they are calculated once and every candidate region is extracted both as a
+ * linear and as a matrix candidate. Each CandidateResult is tagged with the CodeType it was extracted as.
+ */
+public class CombinedBarcode extends Barcode
+{
+  public CombinedBarcode(final String filename, final boolean debug, final TryHarderFlags flag) throws IOException
+  {
+    super(filename, flag);
+    this.debugging = debug;
+  }
+
+
+  public CombinedBarcode(final String filename, final boolean debug, final TryHarderFlags flag, final LoadMode mode,
+      final double targetResolution) throws IOException
+  {
+    super(filename, flag, mode, targetResolution);
+    this.debugging = debug;
+  }
+
+
+  public CombinedBarcode(final String image_name, final Mat img, final TryHarderFlags flag) throws IOException
+  {
+    super(img, flag);
+    this.fileName = image_name;
+    this.debugging = false;
+  }
+
+
+  @Override
+  protected void processCandidateRegion(final RotatedRect minRect) throws IOException
+  {
+    this.addCandidate(new LinearBarcodeCandidate(this.imgDetails, minRect, this.searchParams), minRect.angle);
+    this.addCandidate(new MatrixBarcodeCandidate(this.imgDetails, minRect, this.searchParams),
+        Barcode.USE_ROTATED_RECT_ANGLE);
+  }
+}
@@ -0,0 +1,260 @@
+package com.xelatech.barcode.localizer;
+
+
+import java.util.Arrays;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+
+/**
+ * Turns the Scharr derivatives of the image into quantized gradient directions in Java arrays. It does what the chain
+ * of phase, inRange/add/setTo (fold to 0-180 and clear 170-180), convertTo, magnitude, normalize, Otsu threshold,
+ * inRange/setTo (DUMMY_ANGLE) and add passes did, each of which read and wrote a full size Mat, in three sweeps over
+ * the derivatives.
+ *
+ * Every pixel of the result holds its direction in degrees (0-170) plus 1 if it is an edge, or DUMMY_ANGLE if it is
+ * not, so the direction bin and the edge bit are both read from one byte.
+ */
+class GradientKernel
+{
+  /**
+   * Direction of pixels that are not edges. It falls outside of all histogram bins.
+   */
+  static final int DUMMY_ANGLE = 255;
+
+  /**
+   * Polynomial coefficients of the atan approximation used by Core.phase, so the directions match it.
+   */
+  private static final float ATAN2_P1 = 0.9997878412794807f * (float)(180 / Math.PI);
+
+  private static final float ATAN2_P3 = -0.3258083974640975f * (float)(180 / Math.PI);
+
+  private static final float ATAN2_P5 = 0.1555786518463281f * (float)(180 / Math.PI);
+
+  private static final float ATAN2_P7 = -0.04432655554792128f * (float)(180 / Math.PI);
+
+  private static final float ATAN2_EPSILON = (float)Math.ulp(1.0);
+
+  private static final double FLT_EPSILON = Math.ulp(1.0f);
+
+  int rows;
+
+  int cols;
+
+  /**
+   * Quantized gradient direction of every pixel, row-major. May be longer than rows * cols.
+   */
+  byte[] directions;
+
+  private float[] dx;
+
+  private float[] dy;
+
+  private float[] magnitudes;
+
+  private final int[] histogram = new int[256];
+
+
+  /**
+   * Calculates the quantized gradient directions from the CV_32F Scharr derivatives of the image.
+   *
+   * @param scharrX
+   * @param scharrY
+   */
+  void calculate(final Mat scharrX, final Mat scharrY)
+  {
+    this.allocate(scharrX.rows(), scharrX.cols());
+    scharrX.get(0, 0, this.dx);
+    scharrY.get(0, 0, this.dy);
+
+    final int length = this.rows * this.cols;
+    final byte[] directions = this.directions;
+    final float[] magnitudes = this.magnitudes;
+
+    // Fold directions from 180-360 to 0-180, set directions from 170-180 to 0 and round them. Calculate the gradient
+    // magnitude and its range at the same time.
+    float min = Float.MAX_VALUE;
+    float max = -Float.MAX_VALUE;
+
+    for(int i = 0; i < length; i++)
+    {
+      final float x = this.dx[i];
+      final float y = this.dy[i];
+
+      float angle = GradientKernel.fastAtan2(y, x);
+      if(angle >= 180f)
+      {
+        angle -= 180f;
+      }
+
+      if(angle >= 170f)
+      {
+        angle = 0;
+      }
+
+      directions[i] = (byte)(int)Math.rint(angle);
+
+      final float magnitude = (float)Math.sqrt((x * x) + (y * y));
+      magnitudes[i] = magnitude;
+      min = Math.min(min, magnitude);
+      max = Math.max(max, magnitude);
+    }
+
+    // Normalize magnitudes to 0-255 the same way as Core.normalize with NORM_MINMAX and CV_8U, and build their
+    // histogram for the Otsu threshold.
+    final double range = max - min;
+    final double scale = 255 * ((range > Math.ulp(1.0)) ? (1. / range) : 0);
+    final float alpha = (float)scale;
+    final float beta = (float)(0 - (min * scale));
+
+    Arrays.fill(this.histogram, 0);
+
+    for(int i = 0; i < length; i++)
+    {
+      final int level = Math.max(0, Math.min(255, (int)Math.rint((magnitudes[i] * alpha) + beta)));
+      magnitudes[i] = level;
+      this.histogram[level]++;
+    }
+
+    // Pixels above the threshold are edges and get their direction offset by 1 so that a direction of 0 is counted,
+    // all other pixels get DUMMY_ANGLE.
+    final int threshold = GradientKernel.calcOtsuThreshold(this.histogram, length);
+
+    for(int i = 0; i < length; i++)
+    {
+      directions[i] = (magnitudes[i] > threshold) ? (byte)(directions[i] + 1) : (byte)GradientKernel.DUMMY_ANGLE;
+    }
+  }
+
+
+  /**
+   * Writes the directions and edges into CV_8U matrices, as they were before being moved to Java arrays. Only used for
+   * debugging output.
+   *
+   * @param gradientDirection
+   * @param gradientMagnitude set to 255 for edges and 0 elsewhere
+   */
+  void copyTo(final Mat gradientDirection, final Mat gradientMagnitude)
+  {
+    final int length = this.rows * this.cols;
+    final byte[] edges = new byte[length];
+    for(int i = 0; i < length; i++)
+    {
+      edges[i] = ((this.directions[i] & 0xFF) == GradientKernel.DUMMY_ANGLE) ? 0 : (byte)255;
+    }
+
+    gradientDirection.create(this.rows, this.cols, CvType.CV_8U);
+    gradientDirection.put(0, 0, this.directions, 0, length);
+    gradientMagnitude.create(this.rows, this.cols, CvType.CV_8U);
+    gradientMagnitude.put(0, 0, edges);
+  }
+
+
+  /**
+   * Same calculation as the THRESH_OTSU option of Imgproc.threshold for CV_8U images.
+   *
+   * @param histogram number of pixels of each level
+   * @param total     number of pixels in the histogram
+   * @return
+   */
+  static int calcOtsuThreshold(final int[] histogram, final int total)
+  {
+    final double scale = 1. / total;
+    double mu = 0;
+
+    for(int i = 0; i < 256; i++)
+    {
+      mu += i * (double)histogram[i];
+    }
+    mu *= scale;
+
+    double mu1 = 0, q1 = 0;
+    double max_sigma = 0;
+    int max_val = 0;
+
+    for(int i = 0; i < 256; i++)
+    {
+      final double p_i = histogram[i] * scale;
+      mu1 *= q1;
+      q1 += p_i;
+      final double q2 = 1. - q1;
+
+      if((Math.min(q1, q2) < GradientKernel.FLT_EPSILON) || (Math.max(q1, q2) > (1. - GradientKernel.FLT_EPSILON)))
+      {
+        continue;
+      }
+
+      mu1 = (mu1 + (i * p_i)) / q1;
+      final double mu2 = (mu - (q1 * mu1)) / q2;
+      final double sigma = q1 * q2 * (mu1 - mu2) * (mu1 - mu2);
+      if(sigma > max_sigma)
+      {
+        max_sigma = sigma;
+        max_val = i;
+      }
+    }
+
+    return max_val;
+  }
+
+
+  /**
+   * Direction of (x, y) in degrees (0-360) with the same approximation as Core.phase.
+   *
+   * @param y
+   * @param x
+   * @return
+   */
+  static float fastAtan2(final float y, final float x)
+  {
+    final float ax = Math.abs(x);
+    final float ay = Math.abs(y);
+    float a, c, c2;
+
+    if(ax >= ay)
+    {
+      c = ay / (ax + GradientKernel.ATAN2_EPSILON);
+      c2 = c * c;
+      a = ((((((GradientKernel.ATAN2_P7 * c2) + GradientKernel.ATAN2_P5) * c2) + GradientKernel.ATAN2_P3) * c2)
+          + GradientKernel.ATAN2_P1) * c;
+    }
+    else
+    {
+      c = ax / (ay + GradientKernel.ATAN2_EPSILON);
+      c2 = c * c;
+      a = 90.f - (((((((GradientKernel.ATAN2_P7 * c2) + GradientKernel.ATAN2_P5) * c2) + GradientKernel.ATAN2_P3) * c2)
+          + GradientKernel.ATAN2_P1) * c);
+    }
+
+    if(x < 0)
+    {
+      a = 180.f - a;
+    }
+
+    if(y < 0)
+    {
+      a = 360.f - a;
+    }
+
+    return a;
+  }
+
+
+  private void allocate(final int rows, final int cols)
+  {
+    this.rows = rows;
+    this.cols = cols;
+
+    // Arrays only grow, smaller images use the start of them.
+    if((this.directions != null) && (this.directions.length >= (rows * cols)))
+    {
+      return;
+    }
+
+    this.directions = new byte[rows * cols];
+    this.dx = new float[rows * cols];
+    this.dy = new float[rows * cols];
+    this.magnitudes = new float[rows * cols];
+  }
+}
@@ -3,10 +3,9 @@ package com.xelatech.barcode.localizer;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
+import java.awt.image.DataBufferByte;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 
 import javax.imageio.ImageIO;
 import javax.swing.JFrame;
@@ -14,12 +13,11 @@ import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.WindowConstants;
 
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfByte;
 import org.opencv.core.Point;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
-import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
 public class ImageDisplay extends JPanel {
@@ -47,24 +45,49 @@ public class ImageDisplay extends JPanel {
 	}
 
 	private ImageDisplay(final Mat openCVImage) {
-		try {
-			this.image = ImageDisplay.getBufImg(openCVImage);
-		} catch (final IOException e) {
-			// Let us know what happened
-			System.out.println("Error converting openCV image: " + e.getMessage());
-		}
+		this.image = ImageDisplay.getBufImg(openCVImage);
 	}
 
 	private ImageDisplay(final BufferedImage img) {
 		this.image = img;
 	}
 
-	protected static BufferedImage getBufImg(final Mat image) throws IOException {
-		// converts image in an openCV Mat object into a Java BufferedImage
-		final MatOfByte bytemat = new MatOfByte();
-		Imgcodecs.imencode(".jpg", image, bytemat);
-		final InputStream in = new ByteArrayInputStream(bytemat.toArray());
-		final BufferedImage img = ImageIO.read(in);
+	/**
+	 * Converts image in an openCV Mat object into a Java BufferedImage by copying
+	 * its pixels straight into the image raster. Grayscale Mats become
+	 * TYPE_BYTE_GRAY and colour Mats TYPE_3BYTE_BGR, which has the same byte order
+	 * as openCV, so no encoding or per pixel conversion is needed.
+	 *
+	 * @param image
+	 * @return
+	 */
+	protected static BufferedImage getBufImg(final Mat image) {
+		Mat src = image;
+		if (src.depth() != CvType.CV_8U) {
+			src = new Mat();
+			image.convertTo(src, CvType.CV_8U);
+		}
+		if (src.channels() == 4) {
+			final Mat bgr = new Mat();
+			Imgproc.cvtColor(src, bgr, Imgproc.COLOR_BGRA2BGR);
+			if (src != image) {
+				src.release();
+			}
+			src = bgr;
+		}
+
+		final int type = (src.channels() == 1) ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR;
+		final BufferedImage img = new BufferedImage(src.cols(), src.rows(), type);
+
+		// Mat.get() copies row by row if the Mat is a submat, so any Mat can be read
+		// in one call.
+		final byte[] pixels = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+		src.get(0, 0, pixels);
+
+		if (src != image) {
+			src.release();
+		}
+
 		return img;
 	}
 
@@ -102,12 +125,7 @@ public class ImageDisplay extends JPanel {
 	}
 
 	public void updateImage(final Mat img, final String title) {
-		try {
-			this.image = ImageDisplay.getBufImg(img);
-		} catch (final IOException e) {
-			// Let us know what happened
-			System.out.println("Error converting openCV image: " + e.getMessage());
-		}
+		this.image = ImageDisplay.getBufImg(img);
 		ImageDisplay.frame.setTitle(title);
 		this.repaint();
 	}
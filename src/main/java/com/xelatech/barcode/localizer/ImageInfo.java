@@ -1,12 +1,11 @@
 package com.xelatech.barcode.localizer;
 
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
 
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.Point;
+import org.opencv.core.Rect;
 
 
 /**
@@ -15,16 +14,41 @@ import org.opencv.core.Point;
  */
 class ImageInfo
 {
-  Barcode.CodeType searchType;
-
   Mat srcOriginal;
 
+  /**
+   * Full resolution image if srcOriginal was loaded at a reduced size, otherwise null.
+   */
+  SourceImage fullSource;
+
+  /**
+   * Ratio of the full resolution size to the size of srcOriginal.
+   */
+  double resolutionScale = 1;
+
+  /**
+   * Position of srcOriginal in the full resolution image. Only other than 0 while srcOriginal is a view of a region.
+   */
+  int originX, originY;
+
+  /**
+   * Set if srcOriginal was loaded by the localizer rather than passed in by the caller, in which case release() frees
+   * it too.
+   */
+  boolean ownsOriginal;
+
+  /**
+   * Shares its data with srcGrayscale if srcOriginal has a single channel.
+   */
   Mat srcScaled;
 
   Mat srcGrayscale;
 
   Mat probabilities;
 
+  /**
+   * Only filled in when debugging, the search itself reads the gradients from Java arrays.
+   */
   Mat gradientDirection;
 
   Mat gradientMagnitude;
@@ -33,79 +57,275 @@ class ImageInfo
 
   Mat scharrY;
 
-  Mat mask;
-
   /**
-   * Matrices used in MatrixBarcodeCandidate class.
+   * bin width for histogram calculation.
    */
-  Mat rotationMatrix;
+  protected static final int BIN_WIDTH = 15;
 
-  Mat delta = Mat.zeros(3, 3, CvType.CV_32F);
+  protected static final int bins = 180 / ImageInfo.BIN_WIDTH;
 
-  Mat newCornerCoord = Mat.zeros(2, 1, CvType.CV_32F);
+  int probMatRows, probMatCols;
 
-  Mat coord = Mat.ones(3, 1, CvType.CV_32F);
+  /**
+   * Tile probabilities are written here before being copied into the probabilities matrix in one go.
+   */
+  byte[] probabilityBuffer;
+
+  int[] histArray = new int[ImageInfo.bins];
 
-  List<Point> newCornerPoints = new ArrayList<>(4);
+  GradientKernel gradients = new GradientKernel();
 
-  List<Point> transformedPoints = new ArrayList<>(4);
+  IntegralHistogram histogram = new IntegralHistogram();
 
-  Point[] scaledCorners = new Point[4];
+  TilePyramid pyramid = new TilePyramid();
 
   /**
-   * bin width for histogram calculation.
+   * Working matrices are borrowed from and given back to this pool, or allocated and released if it is null.
    */
-  protected static final int BIN_WIDTH = 15;
+  private final MatPool pool;
 
-  protected static final int bins = 180 / ImageInfo.BIN_WIDTH;
-
-  int probMatRows, probMatCols;
+  /**
+   * Matrices srcScaled, srcGrayscale, scharrX, scharrY and probabilities are submat views of. They only grow, so
+   * smaller images after a larger one reuse them without allocating.
+   */
+  private Mat scaledBacking;
 
-  Mat edgeDensity;
+  private Mat grayscaleBacking;
 
-  List<Mat> histograms = new ArrayList<>();
+  private Mat scharrXBacking;
 
-  List<Mat> histIntegrals = new ArrayList<>();
+  private Mat scharrYBacking;
 
-  Integer[] histArray = new Integer[ImageInfo.bins];
+  private Mat probabilitiesBacking;
 
 
-  ImageInfo(final Mat src)
+  ImageInfo(final Mat src, final MatPool pool)
   {
     this.srcOriginal = src;
-    this.gradientDirection = new Mat();
-    this.gradientMagnitude = new Mat();
+    this.pool = pool;
+    this.gradientDirection = MatTracker.track(new Mat());
+    this.gradientMagnitude = MatTracker.track(new Mat());
+  }
+
+
+  /**
+   * Sets up the matrices that have the size of the scaled image. Called whenever the scaled size may have changed.
+   * Backing matrices are only reallocated if the image does not fit in them, otherwise the matrices become views of
+   * their top left corner.
+   *
+   * @param rows
+   * @param cols
+   */
+  void allocateScaledMats(final int rows, final int cols)
+  {
+    // Single channel images need no conversion, so they are scaled straight into the grayscale matrix.
+    final boolean colour = this.srcOriginal.channels() != 1;
+
+    if((this.grayscaleBacking == null) || (rows > this.grayscaleBacking.rows())
+        || (cols > this.grayscaleBacking.cols()) || (colour != (this.scaledBacking != null))
+        || (colour && (this.srcOriginal.type() != this.scaledBacking.type())))
+    {
+      // Grow to the largest size seen so far so that alternating portrait and landscape frames settle on one size.
+      final int capacityRows = (this.grayscaleBacking == null) ? rows : Math.max(rows, this.grayscaleBacking.rows());
+      final int capacityCols = (this.grayscaleBacking == null) ? cols : Math.max(cols, this.grayscaleBacking.cols());
+
+      this.releaseScaledMats();
+      this.scaledBacking = colour ? this.borrow(capacityRows, capacityCols, this.srcOriginal.type()) : null;
+      this.grayscaleBacking = this.borrow(capacityRows, capacityCols, CvType.CV_8U);
+      this.scharrXBacking = this.borrow(capacityRows, capacityCols, CvType.CV_32F);
+      this.scharrYBacking = this.borrow(capacityRows, capacityCols, CvType.CV_32F);
+    }
+
+    ImageInfo.releaseView(this.srcScaled);
+    ImageInfo.releaseView(this.srcGrayscale);
+    ImageInfo.releaseView(this.scharrX);
+    ImageInfo.releaseView(this.scharrY);
+
+    this.srcScaled = (colour ? this.scaledBacking : this.grayscaleBacking).submat(0, rows, 0, cols);
+    this.srcGrayscale = this.grayscaleBacking.submat(0, rows, 0, cols);
+    this.scharrX = this.scharrXBacking.submat(0, rows, 0, cols);
+    this.scharrY = this.scharrYBacking.submat(0, rows, 0, cols);
+  }
+
 
-    this.scharrX = new Mat();
-    this.scharrY = new Mat();
-    this.mask = new Mat();
+  /**
+   * Returns a matrix of the given size and type with undefined contents, from the pool if there is one.
+   *
+   * @param rows
+   * @param cols
+   * @param type
+   * @return
+   */
+  Mat borrow(final int rows, final int cols, final int type)
+  {
+    return MatTracker.track((this.pool == null) ? new Mat(rows, cols, type) : this.pool.borrow(rows, cols, type));
+  }
 
-    // Create List of points for MatrixBarcodeCandidate.
-    for(int r = 0; r < 4; r++)
+
+  /**
+   * Gives a matrix obtained from borrow() back to the pool, or releases it if there is no pool. Does nothing for null.
+   *
+   * @param mat
+   */
+  void giveBack(final Mat mat)
+  {
+    if(mat == null)
     {
-      this.newCornerPoints.add(new Point());
-      this.transformedPoints.add(new Point());
+      return;
+    }
+
+    if(this.pool == null)
+    {
+      MatTracker.release(mat);
+    }
+    else
+    {
+      MatTracker.untrack(mat);
+      this.pool.giveBack(mat);
     }
   }
 
 
   protected void initializeMats(final int rows, final int cols, final SearchParameters searchParams)
   {
-    this.probabilities = Mat.zeros((int)((rows * searchParams.scaleFactor) + 1),
-        (int)((cols * searchParams.scaleFactor) + 1), CvType.CV_8U);
-    this.srcGrayscale = new Mat(rows, cols, CvType.CV_32F);
-    this.probMatRows = this.probabilities.rows();
-    this.probMatCols = this.probabilities.cols();
-    this.edgeDensity = Mat.zeros((int)(rows / (1.0 * searchParams.tileSize)),
-        (int)(cols / (1.0 * searchParams.tileSize)), CvType.CV_16U);
-
-    // Create Mat objects to contain integral histograms.
-    for(int r = 0; r < ImageInfo.bins; r++)
+    this.probMatRows = (int)((rows * searchParams.scaleFactor) + 1);
+    this.probMatCols = (int)((cols * searchParams.scaleFactor) + 1);
+
+    // Every element is overwritten by each tiling, so the contents of a reused matrix do not matter.
+    if((this.probabilitiesBacking == null) || (this.probMatRows > this.probabilitiesBacking.rows())
+        || (this.probMatCols > this.probabilitiesBacking.cols()))
+    {
+      final int capacityRows = (this.probabilitiesBacking == null) ? this.probMatRows
+          : Math.max(this.probMatRows, this.probabilitiesBacking.rows());
+      final int capacityCols = (this.probabilitiesBacking == null) ? this.probMatCols
+          : Math.max(this.probMatCols, this.probabilitiesBacking.cols());
+
+      this.giveBack(this.probabilitiesBacking);
+      this.probabilitiesBacking = this.borrow(capacityRows, capacityCols, CvType.CV_8U);
+    }
+
+    ImageInfo.releaseView(this.probabilities);
+    this.probabilities = this.probabilitiesBacking.submat(0, this.probMatRows, 0, this.probMatCols);
+
+    // Only the first probMatRows * probMatCols elements are used.
+    if((this.probabilityBuffer == null) || (this.probabilityBuffer.length < (this.probMatRows * this.probMatCols)))
+    {
+      this.probabilityBuffer = new byte[this.probMatRows * this.probMatCols];
+    }
+  }
+
+
+  /**
+   * Frees the native memory of all matrices held here, or gives them back to the pool. srcOriginal is only freed if it
+   * is owned by the localizer.
+   */
+  void release()
+  {
+    if(this.ownsOriginal == true)
+    {
+      MatTracker.release(this.srcOriginal);
+    }
+
+    this.releaseFullSource();
+
+    this.releaseScaledMats();
+
+    ImageInfo.releaseView(this.probabilities);
+    this.giveBack(this.probabilitiesBacking);
+    this.probabilities = this.probabilitiesBacking = null;
+
+    MatTracker.release(this.gradientDirection);
+    MatTracker.release(this.gradientMagnitude);
+  }
+
+
+  /**
+   * Forgets the full resolution image, for when srcOriginal is replaced.
+   */
+  void releaseFullSource()
+  {
+    if(this.fullSource != null)
+    {
+      this.fullSource.release();
+      this.fullSource = null;
+    }
+
+    this.resolutionScale = 1;
+  }
+
+
+  /**
+   * Returns the full resolution number of rows of srcOriginal.
+   *
+   * @return
+   */
+  int fullRows()
+  {
+    return (int)Math.ceil(this.srcOriginal.rows() * this.resolutionScale);
+  }
+
+
+  int fullCols()
+  {
+    return (int)Math.ceil(this.srcOriginal.cols() * this.resolutionScale);
+  }
+
+
+  /**
+   * Returns the full resolution pixels of a rectangle of srcOriginal, which is either a view of srcOriginal or read
+   * from the full resolution image. The caller releases it with MatTracker.release().
+   *
+   * @param region in full resolution coordinates of srcOriginal, clamped in place to the image actually read
+   * @return
+   * @throws IOException
+   */
+  Mat readFullResolution(final Rect region) throws IOException
+  {
+    if(this.fullSource != null)
+    {
+      final Rect source = new Rect(region.x + this.originX, region.y + this.originY, region.width, region.height);
+      final Mat pixels = this.fullSource.read(source);
+
+      region.x = source.x - this.originX;
+      region.y = source.y - this.originY;
+      region.width = source.width;
+      region.height = source.height;
+
+      return pixels;
+    }
+
+    SourceImage.clamp(region, this.srcOriginal.cols(), this.srcOriginal.rows());
+
+    return this.srcOriginal.submat(region.y, region.y + region.height, region.x, region.x + region.width);
+  }
+
+
+  private void releaseScaledMats()
+  {
+    ImageInfo.releaseView(this.srcScaled);
+    ImageInfo.releaseView(this.srcGrayscale);
+    ImageInfo.releaseView(this.scharrX);
+    ImageInfo.releaseView(this.scharrY);
+    this.giveBack(this.scaledBacking);
+    this.giveBack(this.grayscaleBacking);
+    this.giveBack(this.scharrXBacking);
+    this.giveBack(this.scharrYBacking);
+
+    this.srcScaled = this.srcGrayscale = this.scharrX = this.scharrY = null;
+    this.scaledBacking = this.grayscaleBacking = this.scharrXBacking = this.scharrYBacking = null;
+  }
+
+
+  /**
+   * Releases the header of a submat view. The data stays with the matrix it is a view of.
+   *
+   * @param view
+   */
+  private static void releaseView(final Mat view)
+  {
+    if(view != null)
     {
-      this.histograms.add(Mat.zeros((int)((rows / (1.0 * searchParams.tileSize)) + 1),
-          (int)((cols / (1.0 * searchParams.tileSize)) + 1), CvType.CV_32F));
-      this.histIntegrals.add(Mat.zeros((int)((rows / (1.0 * searchParams.tileSize)) + 1),
-          (int)((cols / (1.0 * searchParams.tileSize)) + 1), CvType.CV_32FC1));
+      view.release();
     }
   }
 
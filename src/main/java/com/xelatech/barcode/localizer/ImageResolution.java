@@ -0,0 +1,156 @@
+package com.xelatech.barcode.localizer;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.w3c.dom.NodeList;
+
+
+/**
+ * Finds out the physical resolution of images, in pixels per millimetre, for Barcode.setTargetResolution(). Scans
+ * usually record it, photos usually do not or record a meaningless default.
+ */
+public final class ImageResolution
+{
+  public static final double MM_PER_INCH = 25.4;
+
+  /**
+   * PDF user space units per inch.
+   */
+  private static final double POINTS_PER_INCH = 72;
+
+  /**
+   * Largest relative difference between the aspect ratios of an image and of its page for the image to be taken as
+   * covering the page.
+   */
+  private static final double PAGE_ASPECT_TOLERANCE = 0.02;
+
+
+  private ImageResolution()
+  {
+  }
+
+
+  /**
+   * Reads the resolution from the metadata of an image file: the pHYs chunk of PNG, the JFIF density of JPEG or the
+   * XResolution of TIFF, as ImageIO reports them in its standard metadata format.
+   *
+   * @param file
+   * @return pixels per millimetre or 0 if the file does not record it
+   * @throws IOException
+   */
+  public static double read(final File file) throws IOException
+  {
+    try(ImageInputStream input = ImageIO.createImageInputStream(file))
+    {
+      final Iterator<ImageReader> readers = (input == null) ? null : ImageIO.getImageReaders(input);
+      if((readers == null) || (readers.hasNext() == false))
+      {
+        return 0;
+      }
+
+      final ImageReader reader = readers.next();
+      try
+      {
+        reader.setInput(input, true, false);
+        return ImageResolution.fromMetadata(reader.getImageMetadata(0));
+      }
+      finally
+      {
+        reader.dispose();
+      }
+    }
+  }
+
+
+  /**
+   * Returns the resolution recorded in ImageIO metadata.
+   *
+   * @param metadata
+   * @return pixels per millimetre or 0 if the metadata does not record it
+   */
+  public static double fromMetadata(final IIOMetadata metadata)
+  {
+    if((metadata == null) || (metadata.isStandardMetadataFormatSupported() == false))
+    {
+      return 0;
+    }
+
+    final IIOMetadataNode root = (IIOMetadataNode)metadata
+        .getAsTree(IIOMetadataFormatImpl.standardMetadataFormatName);
+    final NodeList sizes = root.getElementsByTagName("HorizontalPixelSize");
+    if(sizes.getLength() == 0)
+    {
+      return 0;
+    }
+
+    // The standard format records the size of a pixel in millimetres.
+    try
+    {
+      final double pixelSize = Double.parseDouble(((IIOMetadataNode)sizes.item(0)).getAttribute("value"));
+      return (pixelSize > 0) ? 1 / pixelSize : 0;
+    }
+    catch(final NumberFormatException nfe)
+    {
+      return 0;
+    }
+  }
+
+
+  /**
+   * Returns the resolution of an image of a PDF page from its size in pixels and the size of the page, assuming that
+   * the image covers the crop box of the page, as scanned pages do. The longer sides are compared, so it does not
+   * matter whether the page is rotated. Images of another aspect ratio than the page, e.g. a logo placed on it, do not
+   * cover it and their resolution is unknown.
+   *
+   * @param image
+   * @param page
+   * @return pixels per millimetre or 0 if the image does not cover the page
+   */
+  public static double fromPdfImage(final PDImageXObject image, final PDPage page)
+  {
+    final PDRectangle box = page.getCropBox();
+    final double boxLong = Math.max(box.getWidth(), box.getHeight());
+    final double boxShort = Math.min(box.getWidth(), box.getHeight());
+    final int imageLong = Math.max(image.getWidth(), image.getHeight());
+    final int imageShort = Math.min(image.getWidth(), image.getHeight());
+    if((boxShort <= 0) || (imageShort <= 0))
+    {
+      return 0;
+    }
+
+    final double aspectDifference = ((imageLong * boxShort) / (imageShort * boxLong)) - 1;
+    if(Math.abs(aspectDifference) > ImageResolution.PAGE_ASPECT_TOLERANCE)
+    {
+      return 0;
+    }
+
+    final double pageSize = (boxLong / ImageResolution.POINTS_PER_INCH) * ImageResolution.MM_PER_INCH;
+
+    return imageLong / pageSize;
+  }
+
+
+  /**
+   * Converts dots per inch to pixels per millimetre.
+   *
+   * @param dpi
+   * @return
+   */
+  public static double fromDpi(final double dpi)
+  {
+    return dpi / ImageResolution.MM_PER_INCH;
+  }
+}
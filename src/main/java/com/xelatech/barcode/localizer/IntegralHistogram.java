@@ -0,0 +1,202 @@
+package com.xelatech.barcode.localizer;
+
+
+import java.util.Arrays;
+
+
+/**
+ * Builds the integral images of all gradient direction bins in one sweep over the quantized gradient directions,
+ * instead of doing a copyTo/inRange/bitwise_not/setTo/threshold/integral pass over the whole image for every bin. The
+ * edge density integral image is built in the same sweep so that tiles can be summed without any JNI calls.
+ */
+class IntegralHistogram
+{
+  /**
+   * Bin that a gradient direction value is counted in, or -1 if it is not counted in any bin. Bin ranges are inclusive
+   * at both ends (as with Core.inRange), so a value on the boundary between two bins is counted in both of them and
+   * SECONDARY_BIN holds the lower of the two.
+   */
+  private static final int[] PRIMARY_BIN = new int[256];
+
+  private static final int[] SECONDARY_BIN = new int[256];
+
+  static
+  {
+    for(int value = 0; value < 256; value++)
+    {
+      IntegralHistogram.PRIMARY_BIN[value] = -1;
+      IntegralHistogram.SECONDARY_BIN[value] = -1;
+
+      // Gradient directions are stored with an offset of 1 so that a value of 0 never falls in a bin.
+      if(value == 0)
+      {
+        continue;
+      }
+
+      final int bin = (value - 1) / ImageInfo.BIN_WIDTH;
+      if(bin < ImageInfo.bins)
+      {
+        IntegralHistogram.PRIMARY_BIN[value] = bin;
+      }
+
+      if((((value - 1) % ImageInfo.BIN_WIDTH) == 0) && (bin > 0) && (bin <= ImageInfo.bins))
+      {
+        IntegralHistogram.SECONDARY_BIN[value] = bin - 1;
+      }
+    }
+  }
+
+  int rows;
+
+  int cols;
+
+  /**
+   * One integral image per bin, each (rows + 1) x (cols + 1) and stored row-major.
+   */
+  int[][] planes = new int[ImageInfo.bins][];
+
+  /**
+   * Integral image of edge pixels, same layout as the bin planes.
+   */
+  int[] edges;
+
+  /**
+   * Running sum of every bin along the current row.
+   */
+  private final int[] rowSums = new int[ImageInfo.bins];
+
+  /**
+   * Calculates the integral images of all bins and of the edges from the quantized gradient directions.
+   *
+   * @param gradients
+   */
+  void calculate(final GradientKernel gradients)
+  {
+    this.allocate(gradients.rows, gradients.cols);
+
+    final byte[] directions = gradients.directions;
+    final int stride = this.cols + 1;
+    final int bins = ImageInfo.bins;
+    final int[][] planes = this.planes;
+    final int[] edges = this.edges;
+    final int[] rowSums = this.rowSums;
+
+    for(int y = 0; y < this.rows; y++)
+    {
+      final int src = y * this.cols;
+      final int above = (y * stride) + 1;
+      final int dst = above + stride;
+
+      Arrays.fill(rowSums, 0);
+      int edgeSum = 0;
+
+      // Each pixel only updates the running sums of the bins it falls in, every plane then gets the sum of its bin.
+      for(int x = 0; x < this.cols; x++)
+      {
+        final int value = directions[src + x] & 0xFF;
+        if(value != GradientKernel.DUMMY_ANGLE)
+        {
+          edgeSum++;
+        }
+
+        final int primary = IntegralHistogram.PRIMARY_BIN[value];
+        if(primary >= 0)
+        {
+          rowSums[primary]++;
+        }
+
+        final int secondary = IntegralHistogram.SECONDARY_BIN[value];
+        if(secondary >= 0)
+        {
+          rowSums[secondary]++;
+        }
+
+        edges[dst + x] = edges[above + x] + edgeSum;
+        for(int r = 0; r < bins; r++)
+        {
+          planes[r][dst + x] = planes[r][above + x] + rowSums[r];
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Calculates sum of values within a rectangle from one of the integral images held here. Rows and cols are those of
+   * the integral image, so the rectangle covers image rows top_row to bottom_row - 1 and cols left_col to right_col - 1
+   * (see p. 185 of Learning OpenCV ed. 1 by Gary Bradski). A bottom row or right col beyond the image is clamped to its
+   * last row or col, and a negative top row or left col counts as the first one, which holds zeros, so a rectangle
+   * lying partly outside the image sums the part inside it.
+   *
+   * @param plane
+   * @param top_row
+   * @param bottom_row
+   * @param left_col
+   * @param right_col
+   * @return
+   */
+  int rectSum(final int[] plane, final int top_row, int bottom_row, final int left_col, int right_col)
+  {
+    final int stride = this.cols + 1;
+
+    bottom_row = Math.min(bottom_row, this.rows);
+    right_col = Math.min(right_col, this.cols);
+
+    final int bottom = bottom_row * stride;
+    final int top = top_row * stride;
+
+    final int bottom_right = plane[bottom + right_col];
+    final int top_right = (top_row < 0) ? 0 : plane[top + right_col];
+    final int top_left = ((left_col < 0) || (top_row < 0)) ? 0 : plane[top + left_col];
+    final int bottom_left = (left_col < 0) ? 0 : plane[bottom + left_col];
+
+    return ((bottom_right - bottom_left - top_right) + top_left);
+  }
+
+
+  private void allocate(final int rows, final int cols)
+  {
+    // First row and column of each plane are never written, so they stay zero while the planes are reused for images
+    // of the same size.
+    if((rows == this.rows) && (cols == this.cols) && (this.planes[0] != null))
+    {
+      return;
+    }
+
+    this.rows = rows;
+    this.cols = cols;
+
+    final int length = (rows + 1) * (cols + 1);
+
+    // Planes only grow. When a smaller image reuses them its first row and column fall on data of the previous image
+    // and have to be cleared.
+    if((this.edges != null) && (this.edges.length >= length))
+    {
+      IntegralHistogram.clearBorder(this.edges, rows, cols);
+      for(int r = 0; r < ImageInfo.bins; r++)
+      {
+        IntegralHistogram.clearBorder(this.planes[r], rows, cols);
+      }
+      return;
+    }
+
+    this.edges = new int[length];
+
+    for(int r = 0; r < ImageInfo.bins; r++)
+    {
+      this.planes[r] = new int[length];
+    }
+  }
+
+
+  private static void clearBorder(final int[] plane, final int rows, final int cols)
+  {
+    final int stride = cols + 1;
+
+    Arrays.fill(plane, 0, stride, 0);
+    for(int y = 1; y <= rows; y++)
+    {
+      plane[y * stride] = 0;
+    }
+  }
+}
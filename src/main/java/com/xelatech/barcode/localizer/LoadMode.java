@@ -0,0 +1,89 @@
+package com.xelatech.barcode.localizer;
+
+
+import org.opencv.imgcodecs.Imgcodecs;
+
+
+/**
+ * Enum to control how image files are loaded by the localizer, default set to COLOR.
+ */
+public enum LoadMode
+{
+  /*
+   * COLOR loads every image as 3 channel BGR, so candidate regions keep their colours.
+   * GRAYSCALE loads a single channel, which is all the search needs. It takes a third of the memory of COLOR and the
+   * conversion to grayscale is skipped, candidate regions are grayscale then.
+   * REDUCED_GRAYSCALE loads large images at 1/2, 1/4 or 1/8 of their size, whichever still has at least MAX_ROWS rows,
+   * as the search scales them down to that anyway. JPEG files are decoded at the reduced size directly. The full
+   * resolution image is only decoded once a candidate region is cut out of it.
+   * SUBSAMPLED_GRAYSCALE is meant for huge scans, e.g. TIFF or PNG, that openCV would decode in full. ImageIO reads
+   * every n-th pixel of them for the search, leaving at least MAX_ROWS rows, and candidate regions are read from the
+   * file one at a time, so the full resolution image is never held in memory. Formats without an ImageIO reader are
+   * loaded like GRAYSCALE.
+   */
+  COLOR(Imgcodecs.IMREAD_COLOR, false, false), GRAYSCALE(Imgcodecs.IMREAD_GRAYSCALE, false, false),
+  REDUCED_GRAYSCALE(Imgcodecs.IMREAD_GRAYSCALE, true, false),
+  SUBSAMPLED_GRAYSCALE(Imgcodecs.IMREAD_GRAYSCALE, false, true);
+
+  private int flag;
+
+  private boolean reduced;
+
+  private boolean subsampled;
+
+
+  LoadMode(final int flag, final boolean reduced, final boolean subsampled)
+  {
+    this.flag = flag;
+    this.reduced = reduced;
+    this.subsampled = subsampled;
+  }
+
+
+  /**
+   * Returns the imread flags to load the image at full resolution.
+   *
+   * @return
+   */
+  int flag()
+  {
+    return this.flag;
+  }
+
+
+  boolean isReduced()
+  {
+    return this.reduced;
+  }
+
+
+  boolean isSubsampled()
+  {
+    return this.subsampled;
+  }
+
+
+  /**
+   * Returns the imread flags to load the image at 1/factor of its size.
+   *
+   * @param factor 2, 4 or 8
+   * @return
+   */
+  int reducedFlag(final int factor)
+  {
+    switch(factor)
+    {
+      case 2:
+        return Imgcodecs.IMREAD_REDUCED_GRAYSCALE_2;
+
+      case 4:
+        return Imgcodecs.IMREAD_REDUCED_GRAYSCALE_4;
+
+      case 8:
+        return Imgcodecs.IMREAD_REDUCED_GRAYSCALE_8;
+
+      default:
+        return this.flag;
+    }
+  }
+}
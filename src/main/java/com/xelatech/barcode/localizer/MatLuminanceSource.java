@@ -0,0 +1,170 @@
+package com.xelatech.barcode.localizer;
+
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import com.google.zxing.LuminanceSource;
+
+
+/**
+ * ZXing LuminanceSource reading the pixels of an openCV Mat, such as CandidateResult.ROI, so candidates can be decoded
+ * without creating a BufferedImage. Grayscale 8 bit Mats are copied with one bulk get(), colour Mats are converted to
+ * grayscale by openCV first. Cropping and rotating by 90 degrees work on the copied luminance array.
+ */
+public final class MatLuminanceSource extends LuminanceSource
+{
+  private final byte[] luminances;
+
+  private final int dataWidth;
+
+  private final int dataHeight;
+
+  private final int left;
+
+  private final int top;
+
+
+  public MatLuminanceSource(final Mat image)
+  {
+    super(image.cols(), image.rows());
+
+    Mat gray = image;
+    if(gray.channels() == 3)
+    {
+      gray = new Mat();
+      Imgproc.cvtColor(image, gray, Imgproc.COLOR_BGR2GRAY);
+    }
+    else if(gray.channels() == 4)
+    {
+      gray = new Mat();
+      Imgproc.cvtColor(image, gray, Imgproc.COLOR_BGRA2GRAY);
+    }
+
+    if(gray.depth() != CvType.CV_8U)
+    {
+      final Mat converted = new Mat();
+      gray.convertTo(converted, CvType.CV_8U);
+      if(gray != image)
+      {
+        gray.release();
+      }
+      gray = converted;
+    }
+
+    this.dataWidth = image.cols();
+    this.dataHeight = image.rows();
+    this.left = 0;
+    this.top = 0;
+    this.luminances = new byte[this.dataWidth * this.dataHeight];
+    gray.get(0, 0, this.luminances);
+
+    if(gray != image)
+    {
+      gray.release();
+    }
+  }
+
+
+  private MatLuminanceSource(final byte[] luminances, final int dataWidth, final int dataHeight, final int left,
+      final int top, final int width, final int height)
+  {
+    super(width, height);
+
+    if(((left + width) > dataWidth) || ((top + height) > dataHeight))
+    {
+      throw new IllegalArgumentException("Crop rectangle does not fit within image data.");
+    }
+
+    this.luminances = luminances;
+    this.dataWidth = dataWidth;
+    this.dataHeight = dataHeight;
+    this.left = left;
+    this.top = top;
+  }
+
+
+  @Override
+  public byte[] getRow(final int y, byte[] row)
+  {
+    if((y < 0) || (y >= this.getHeight()))
+    {
+      throw new IllegalArgumentException("Requested row is outside the image: " + y);
+    }
+
+    final int width = this.getWidth();
+    if((row == null) || (row.length < width))
+    {
+      row = new byte[width];
+    }
+
+    System.arraycopy(this.luminances, ((y + this.top) * this.dataWidth) + this.left, row, 0, width);
+    return row;
+  }
+
+
+  @Override
+  public byte[] getMatrix()
+  {
+    final int width = this.getWidth();
+    final int height = this.getHeight();
+
+    // If the caller asks for the entire underlying image, save the copy and give them the original data.
+    if((width == this.dataWidth) && (height == this.dataHeight))
+    {
+      return this.luminances;
+    }
+
+    final byte[] matrix = new byte[width * height];
+    for(int y = 0; y < height; y++)
+    {
+      System.arraycopy(this.luminances, ((y + this.top) * this.dataWidth) + this.left, matrix, y * width, width);
+    }
+
+    return matrix;
+  }
+
+
+  @Override
+  public boolean isCropSupported()
+  {
+    return true;
+  }
+
+
+  @Override
+  public LuminanceSource crop(final int left, final int top, final int width, final int height)
+  {
+    return new MatLuminanceSource(this.luminances, this.dataWidth, this.dataHeight, this.left + left, this.top + top,
+        width, height);
+  }
+
+
+  @Override
+  public boolean isRotateSupported()
+  {
+    return true;
+  }
+
+
+  @Override
+  public LuminanceSource rotateCounterClockwise()
+  {
+    final int width = this.getWidth();
+    final int height = this.getHeight();
+    final byte[] rotated = new byte[width * height];
+
+    // Pixel (x, y) moves to (y, width - 1 - x) of the rotated image, which is height pixels wide.
+    for(int y = 0; y < height; y++)
+    {
+      final int src = ((y + this.top) * this.dataWidth) + this.left;
+      for(int x = 0; x < width; x++)
+      {
+        rotated[(((width - 1) - x) * height) + y] = this.luminances[src + x];
+      }
+    }
+
+    return new MatLuminanceSource(rotated, height, width, 0, 0, height, width);
+  }
+}
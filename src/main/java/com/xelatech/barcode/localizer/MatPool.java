@@ -0,0 +1,200 @@
+package com.xelatech.barcode.localizer;
+
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.opencv.core.Mat;
+
+
+/**
+ * Bounded pool of Mats keyed by rows, cols and type. When images of a handful of fixed sizes are processed, ImageInfo
+ * gets its working matrices from here instead of allocating native memory for every image. Once the pool holds more
+ * than its capacity, Mats of the least recently used size are released. Safe to share between threads.
+ */
+public final class MatPool
+{
+  private static final class Key
+  {
+    final int rows;
+
+    final int cols;
+
+    final int type;
+
+
+    Key(final int rows, final int cols, final int type)
+    {
+      this.rows = rows;
+      this.cols = cols;
+      this.type = type;
+    }
+
+
+    @Override
+    public boolean equals(final Object obj)
+    {
+      if(!(obj instanceof Key))
+      {
+        return false;
+      }
+
+      final Key other = (Key)obj;
+      return (this.rows == other.rows) && (this.cols == other.cols) && (this.type == other.type);
+    }
+
+
+    @Override
+    public int hashCode()
+    {
+      return (((this.rows * 31) + this.cols) * 31) + this.type;
+    }
+  }
+
+  private final int capacity;
+
+  /**
+   * Free Mats of each size, in access order so the first entry is the least recently used size.
+   */
+  private final Map<Key, ArrayDeque<Mat>> free = new LinkedHashMap<>(16, 0.75f, true);
+
+  private int size;
+
+  private long hits;
+
+  private long misses;
+
+  private long evictions;
+
+
+  /**
+   * @param capacity maximum number of free Mats kept in the pool
+   */
+  public MatPool(final int capacity)
+  {
+    this.capacity = capacity;
+  }
+
+
+  /**
+   * Returns a Mat of the given size and type, from the pool if one is free. Its contents are undefined.
+   *
+   * @param rows
+   * @param cols
+   * @param type
+   * @return
+   */
+  public synchronized Mat borrow(final int rows, final int cols, final int type)
+  {
+    final Key key = new Key(rows, cols, type);
+    final ArrayDeque<Mat> mats = this.free.get(key);
+
+    if((mats != null) && !mats.isEmpty())
+    {
+      final Mat mat = mats.pop();
+      if(mats.isEmpty())
+      {
+        this.free.remove(key);
+      }
+
+      this.size--;
+      this.hits++;
+      return mat;
+    }
+
+    this.misses++;
+    return new Mat(rows, cols, type);
+  }
+
+
+  /**
+   * Puts a Mat back into the pool. The caller must not use it afterwards.
+   *
+   * @param mat
+   */
+  public synchronized void giveBack(final Mat mat)
+  {
+    if(mat.empty() == true)
+    {
+      mat.release();
+      return;
+    }
+
+    final Key key = new Key(mat.rows(), mat.cols(), mat.type());
+    ArrayDeque<Mat> mats = this.free.get(key);
+    if(mats == null)
+    {
+      mats = new ArrayDeque<>();
+      this.free.put(key, mats);
+    }
+
+    mats.push(mat);
+    this.size++;
+
+    while(this.size > this.capacity)
+    {
+      this.evictLeastRecentlyUsed();
+    }
+  }
+
+
+  /**
+   * Releases all free Mats.
+   */
+  public synchronized void clear()
+  {
+    for(final ArrayDeque<Mat> mats : this.free.values())
+    {
+      for(final Mat mat : mats)
+      {
+        mat.release();
+      }
+    }
+
+    this.free.clear();
+    this.size = 0;
+  }
+
+
+  public synchronized int getSize()
+  {
+    return this.size;
+  }
+
+
+  public synchronized long getHits()
+  {
+    return this.hits;
+  }
+
+
+  public synchronized long getMisses()
+  {
+    return this.misses;
+  }
+
+
+  public synchronized long getEvictions()
+  {
+    return this.evictions;
+  }
+
+
+  private void evictLeastRecentlyUsed()
+  {
+    final Iterator<ArrayDeque<Mat>> it = this.free.values().iterator();
+    final ArrayDeque<Mat> mats = it.next();
+
+    // Oldest Mat of the size is at the end of the deque.
+    mats.pollLast().release();
+    if(mats.isEmpty())
+    {
+      it.remove();
+    }
+
+    this.size--;
+    this.evictions++;
+  }
+}
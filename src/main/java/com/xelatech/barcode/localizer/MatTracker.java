@@ -0,0 +1,149 @@
+package com.xelatech.barcode.localizer;
+
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.opencv.core.Mat;
+
+
+/**
+ * Keeps count of the Mats allocated by the localizer that have not been released yet, so that native memory leaks
+ * show up in tests instead of as a growing process size. Tracking is off by default and costs nothing then, Mats are
+ * still released by release() either way.
+ */
+public final class MatTracker
+{
+  private static volatile boolean enabled;
+
+  private static final Set<Mat> live = Collections.newSetFromMap(new IdentityHashMap<Mat, Boolean>());
+
+
+  private MatTracker()
+  {
+  }
+
+
+  /**
+   * Turns tracking on or off. Mats created while it is off are not counted, so it should be turned on before the
+   * Barcode objects to check are created.
+   *
+   * @param enable
+   */
+  public static void setEnabled(final boolean enable)
+  {
+    MatTracker.enabled = enable;
+
+    if(enable == false)
+    {
+      synchronized(MatTracker.live)
+      {
+        MatTracker.live.clear();
+      }
+    }
+  }
+
+
+  public static boolean isEnabled()
+  {
+    return MatTracker.enabled;
+  }
+
+
+  /**
+   * Registers a Mat owned by the localizer.
+   *
+   * @param mat
+   * @return the same Mat
+   */
+  static <T extends Mat> T track(final T mat)
+  {
+    if(MatTracker.enabled == true)
+    {
+      synchronized(MatTracker.live)
+      {
+        MatTracker.live.add(mat);
+      }
+    }
+
+    return mat;
+  }
+
+
+  /**
+   * Frees the native memory of a Mat right away instead of when it is garbage collected. Does nothing for null.
+   *
+   * @param mat
+   */
+  static void release(final Mat mat)
+  {
+    if(mat == null)
+    {
+      return;
+    }
+
+    if(MatTracker.enabled == true)
+    {
+      synchronized(MatTracker.live)
+      {
+        MatTracker.live.remove(mat);
+      }
+    }
+
+    mat.release();
+  }
+
+
+  /**
+   * Stops counting a Mat that is still allocated but no longer owned by a Barcode, e.g. because it went back into a
+   * MatPool.
+   *
+   * @param mat
+   */
+  static void untrack(final Mat mat)
+  {
+    if(MatTracker.enabled == true)
+    {
+      synchronized(MatTracker.live)
+      {
+        MatTracker.live.remove(mat);
+      }
+    }
+  }
+
+
+  /**
+   * Returns the number of tracked Mats that have not been released.
+   *
+   * @return
+   */
+  public static int getLiveMatCount()
+  {
+    synchronized(MatTracker.live)
+    {
+      return MatTracker.live.size();
+    }
+  }
+
+
+  /**
+   * Returns the size of the pixel data of all tracked Mats that have not been released.
+   *
+   * @return
+   */
+  public static long getLiveMatBytes()
+  {
+    long bytes = 0;
+
+    synchronized(MatTracker.live)
+    {
+      for(final Mat mat : MatTracker.live)
+      {
+        bytes += mat.total() * mat.elemSize();
+      }
+    }
+
+    return bytes;
+  }
+}
@@ -23,7 +23,9 @@ class SearchParameters
   /**
    * Image with more rows than MAX_ROWS is scaled down to make finding barcode quicker.
    */
-  final int MAX_ROWS = 500;
+  static final int DEFAULT_MAX_ROWS = 500;
+
+  final int MAX_ROWS = SearchParameters.DEFAULT_MAX_ROWS;
 
   /**
    * Threshold for ratio of contour area to bounding rectangle area - used to see if contour shape is roughly
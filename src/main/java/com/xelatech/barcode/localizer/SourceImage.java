@@ -0,0 +1,296 @@
+package com.xelatech.barcode.localizer;
+
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgcodecs.Imgcodecs;
+
+
+/**
+ * Full resolution pixels of an image that was loaded at a reduced size for the search. Candidate regions are only a
+ * small part of the image, so they are read from here when they are normalized instead of keeping the full resolution
+ * image in memory while searching.
+ */
+abstract class SourceImage
+{
+  /**
+   * Returns the full resolution pixels of a rectangle of the image. The rectangle is clamped in place to the image,
+   * see clamp(). The caller releases the returned matrix with MatTracker.release().
+   *
+   * @param region
+   * @return
+   * @throws IOException
+   */
+  abstract Mat read(Rect region) throws IOException;
+
+
+  /**
+   * Clamps a rectangle in place to an image of the given size, keeping at least one pixel of it. A reduced image scaled
+   * back up can be a few pixels larger than the full resolution image, so rectangles computed from it may lie partly
+   * or even wholly beyond its right and bottom edges.
+   *
+   * @param region
+   * @param width
+   * @param height
+   */
+  static void clamp(final Rect region, final int width, final int height)
+  {
+    final int right = Math.max(Math.min(region.x + region.width, width), 1);
+    final int bottom = Math.max(Math.min(region.y + region.height, height), 1);
+
+    region.x = Math.min(Math.max(region.x, 0), right - 1);
+    region.y = Math.min(Math.max(region.y, 0), bottom - 1);
+    region.width = right - region.x;
+    region.height = bottom - region.y;
+  }
+
+
+  /**
+   * Frees the native memory held for reading.
+   */
+  abstract void release();
+
+
+  /**
+   * Reads the width and height of an image file from its header without decoding it.
+   *
+   * @param file
+   * @return size or null if no ImageIO reader knows the format
+   * @throws IOException
+   */
+  static Dimension readSize(final File file) throws IOException
+  {
+    try(ImageInputStream input = ImageIO.createImageInputStream(file))
+    {
+      final Iterator<ImageReader> readers = (input == null) ? null : ImageIO.getImageReaders(input);
+      if((readers == null) || (readers.hasNext() == false))
+      {
+        return null;
+      }
+
+      final ImageReader reader = readers.next();
+      try
+      {
+        reader.setInput(input, true, true);
+        return new Dimension(reader.getWidth(0), reader.getHeight(0));
+      }
+      finally
+      {
+        reader.dispose();
+      }
+    }
+  }
+
+
+  /**
+   * Converts an image read by ImageIO into a CV_8U grayscale matrix.
+   *
+   * @param image
+   * @return
+   */
+  static Mat toGrayscaleMat(final BufferedImage image)
+  {
+    final int width = image.getWidth();
+    final int height = image.getHeight();
+    final byte[] pixels;
+
+    if(image.getType() == BufferedImage.TYPE_BYTE_GRAY)
+    {
+      pixels = (byte[])image.getRaster().getDataElements(0, 0, width, height, null);
+    }
+    else
+    {
+      // Bilevel, 16 bit and colour images are converted by drawing them.
+      final BufferedImage gray = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+      final Graphics2D g = gray.createGraphics();
+      g.drawImage(image, 0, 0, null);
+      g.dispose();
+      pixels = ((DataBufferByte)gray.getRaster().getDataBuffer()).getData();
+    }
+
+    final Mat mat = MatTracker.track(new Mat(height, width, CvType.CV_8U));
+    mat.put(0, 0, pixels);
+    return mat;
+  }
+
+
+  /**
+   * Decodes the whole image file with openCV the first time a region is read and keeps it until released, so all
+   * candidates of an image share one decode.
+   */
+  static final class DecodedFile extends SourceImage
+  {
+    private final String fileName;
+
+    private final int flags;
+
+    private Mat image;
+
+
+    DecodedFile(final String fileName, final int flags)
+    {
+      this.fileName = fileName;
+      this.flags = flags;
+    }
+
+
+    @Override
+    Mat read(final Rect region) throws IOException
+    {
+      if(this.image == null)
+      {
+        this.image = MatTracker.track(Imgcodecs.imread(this.fileName, this.flags));
+        if(this.image.empty() == true)
+        {
+          this.release();
+          throw new IOException("Could not decode " + this.fileName + " at full resolution.");
+        }
+      }
+
+      SourceImage.clamp(region, this.image.cols(), this.image.rows());
+
+      return this.image.submat(region.y, region.y + region.height, region.x, region.x + region.width);
+    }
+
+
+    @Override
+    void release()
+    {
+      MatTracker.release(this.image);
+      this.image = null;
+    }
+  }
+
+
+  /**
+   * Keeps an ImageIO reader open on the image file and decodes only the requested regions, so the full resolution image
+   * is never held in memory. Formats such as TIFF and PNG are decoded a strip or row at a time, so reading the
+   * subsampled image for the search does not hold the full resolution image either.
+   */
+  static final class RegionReader extends SourceImage
+  {
+    private final ImageInputStream input;
+
+    private final ImageReader reader;
+
+    private final int width;
+
+    private final int height;
+
+
+    private RegionReader(final ImageInputStream input, final ImageReader reader) throws IOException
+    {
+      this.input = input;
+      this.reader = reader;
+      this.width = reader.getWidth(0);
+      this.height = reader.getHeight(0);
+    }
+
+
+    /**
+     * Opens an image file for reading regions of it.
+     *
+     * @param file
+     * @return reader or null if no ImageIO reader knows the format
+     * @throws IOException
+     */
+    static RegionReader open(final File file) throws IOException
+    {
+      final ImageInputStream input = ImageIO.createImageInputStream(file);
+      if(input == null)
+      {
+        return null;
+      }
+
+      final Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+      if(readers.hasNext() == false)
+      {
+        input.close();
+        return null;
+      }
+
+      final ImageReader reader = readers.next();
+      try
+      {
+        reader.setInput(input, false, true);
+        return new RegionReader(input, reader);
+      }
+      catch(final IOException | RuntimeException e)
+      {
+        reader.dispose();
+        input.close();
+        throw e;
+      }
+    }
+
+
+    int getWidth()
+    {
+      return this.width;
+    }
+
+
+    int getHeight()
+    {
+      return this.height;
+    }
+
+
+    /**
+     * Reads every factor-th pixel of every factor-th row of the image.
+     *
+     * @param factor
+     * @return
+     * @throws IOException
+     */
+    Mat readSubsampled(final int factor) throws IOException
+    {
+      final ImageReadParam param = this.reader.getDefaultReadParam();
+      param.setSourceSubsampling(factor, factor, 0, 0);
+
+      return SourceImage.toGrayscaleMat(this.reader.read(0, param));
+    }
+
+
+    @Override
+    Mat read(final Rect region) throws IOException
+    {
+      SourceImage.clamp(region, this.width, this.height);
+
+      final ImageReadParam param = this.reader.getDefaultReadParam();
+      param.setSourceRegion(new Rectangle(region.x, region.y, region.width, region.height));
+
+      return SourceImage.toGrayscaleMat(this.reader.read(0, param));
+    }
+
+
+    @Override
+    void release()
+    {
+      this.reader.dispose();
+      try
+      {
+        this.input.close();
+      }
+      catch(final IOException ioe)
+      {
+        // Nothing more to free.
+      }
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package com.xelatech.barcode.localizer;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Edge and gradient direction bin counts of every tile, for each of the tile sizes locateBarcode() searches with. The
+ * finest level is read from the integral images once, every coarser level has tiles 4 times as large and is derived by
+ * summing 4 x 4 blocks of the level below it, so coarser tile sizes cost a fraction of the finest one.
+ */
+class TilePyramid
+{
+  /**
+   * Counts kept per tile: number of edges followed by the count of each bin.
+   */
+  static final int CHANNELS = ImageInfo.bins + 1;
+
+  /**
+   * Number of tiles along each side of a block that is summed into one tile of the next level.
+   */
+  static final int LEVEL_FACTOR = 4;
+
+  static class Level
+  {
+    final int tileSize;
+
+    final int rows;
+
+    final int cols;
+
+    /**
+     * CHANNELS counts per tile, tiles stored row-major.
+     */
+    final int[] counts;
+
+
+    Level(final int tileSize, final int rows, final int cols)
+    {
+      this.tileSize = tileSize;
+      this.rows = rows;
+      this.cols = cols;
+      this.counts = new int[rows * cols * TilePyramid.CHANNELS];
+    }
+  }
+
+  private final List<Level> levels = new ArrayList<>();
+
+
+  /**
+   * Builds the finest level of the pyramid from the integral images. Coarser levels are built by level() when first
+   * needed.
+   *
+   * @param histogram
+   * @param tileSize
+   */
+  void build(final IntegralHistogram histogram, final int tileSize)
+  {
+    final int rows = histogram.rows;
+    final int cols = histogram.cols;
+    final Level base = new Level(tileSize, ((rows + tileSize) - 1) / tileSize, ((cols + tileSize) - 1) / tileSize);
+
+    int idx = 0;
+    for(int i = 0; i < rows; i += tileSize)
+    {
+      final int bottom_row = Math.min(i + tileSize, rows);
+
+      for(int j = 0; j < cols; j += tileSize)
+      {
+        final int right_col = Math.min(j + tileSize, cols);
+
+        base.counts[idx++] = histogram.rectSum(histogram.edges, i, bottom_row, j, right_col);
+        for(int r = 0; r < ImageInfo.bins; r++)
+        {
+          base.counts[idx++] = histogram.rectSum(histogram.planes[r], i, bottom_row, j, right_col);
+        }
+      }
+    }
+
+    this.levels.clear();
+    this.levels.add(base);
+  }
+
+
+  /**
+   * Returns the level with the given tile size, which must be the tile size passed to build() times a power of
+   * LEVEL_FACTOR.
+   *
+   * @param tileSize
+   * @return
+   */
+  Level level(final int tileSize)
+  {
+    int index = 0;
+    for(int size = this.levels.get(0).tileSize; size < tileSize; size *= TilePyramid.LEVEL_FACTOR)
+    {
+      index++;
+    }
+
+    while(this.levels.size() <= index)
+    {
+      this.levels.add(TilePyramid.coarsen(this.levels.get(this.levels.size() - 1)));
+    }
+
+    return this.levels.get(index);
+  }
+
+
+  /**
+   * Sums LEVEL_FACTOR x LEVEL_FACTOR blocks of tiles into the tiles of the next level. Tiles of both levels start at
+   * multiples of their tile size and are clipped at the image border, so the blocks partition each coarser tile
+   * exactly.
+   *
+   * @param fine
+   * @return
+   */
+  private static Level coarsen(final Level fine)
+  {
+    final int factor = TilePyramid.LEVEL_FACTOR;
+    final Level coarse = new Level(fine.tileSize * factor, ((fine.rows + factor) - 1) / factor,
+        ((fine.cols + factor) - 1) / factor);
+
+    for(int fineRow = 0; fineRow < fine.rows; fineRow++)
+    {
+      final int coarseRowStart = (fineRow / factor) * coarse.cols;
+
+      for(int fineCol = 0; fineCol < fine.cols; fineCol++)
+      {
+        final int src = ((fineRow * fine.cols) + fineCol) * TilePyramid.CHANNELS;
+        final int dst = (coarseRowStart + (fineCol / factor)) * TilePyramid.CHANNELS;
+
+        for(int c = 0; c < TilePyramid.CHANNELS; c++)
+        {
+          coarse.counts[dst + c] += fine.counts[src + c];
+        }
+      }
+    }
+
+    return coarse;
+  }
+}
@@ -0,0 +1,708 @@
+package com.xelatech.barcode.localizer;
+
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import org.opencv.core.Mat;
+
+
+/**
+ * Locates barcodes in a stream of frames, e.g. from a camera, with capture, localization and decoding each running in
+ * their own thread. Frames are handed from one stage to the next through bounded queues, so a slow localization does
+ * not stall the capture. What happens when a queue is full is chosen per queue with a DropPolicy.
+ *
+ * A single Barcode instance, created by the BarcodeFactory for the first frame, searches all frames through
+ * Barcode.updateImage(), so its working matrices are reused for every frame.
+ */
+public final class VideoPipeline implements AutoCloseable
+{
+  /**
+   * Stages of the pipeline. LOCALIZE and DECODE read their frames from a queue.
+   */
+  public enum Stage
+  {
+    CAPTURE, LOCALIZE, DECODE
+  }
+
+  /**
+   * What a queue does with a new frame when it is full.
+   */
+  public enum DropPolicy
+  {
+    /**
+     * Discards the oldest queued frame to make room.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Keeps only the newest frame, the queue capacity is ignored. Gives the lowest latency for live cameras.
+     */
+    LATEST_ONLY,
+
+    /**
+     * Waits until there is room, so no frame is lost. Meant for video files.
+     */
+    BLOCK
+  }
+
+  /**
+   * Reads the next frame into the given Mat. VideoCapture::read can be passed as is.
+   */
+  public interface FrameSource
+  {
+    /**
+     * @param frame
+     * @return false at the end of the stream
+     */
+    boolean read(Mat frame);
+  }
+
+  /**
+   * Creates the Barcode used to search all frames from the first one, e.g. one of the Mat constructors of
+   * MatrixBarcode or LinearBarcode.
+   */
+  public interface BarcodeFactory
+  {
+    Barcode create(String name, Mat image) throws IOException;
+  }
+
+  /**
+   * Decodes the candidates of a frame. Called in the decode thread, one frame at a time. The frame's image and
+   * candidates are released when it returns, so anything kept must be copied.
+   */
+  public interface FrameDecoder
+  {
+    void decode(Frame frame);
+  }
+
+  /**
+   * A captured frame and, after localization, the candidate regions found in it.
+   */
+  public static final class Frame
+  {
+    private final long number;
+
+    private final long captureTime;
+
+    private final Mat image;
+
+    private List<CandidateResult> candidates = Collections.emptyList();
+
+
+    Frame(final long number, final long captureTime, final Mat image)
+    {
+      this.number = number;
+      this.captureTime = captureTime;
+      this.image = image;
+    }
+
+
+    /**
+     * Returns the number of the frame, counting from 0 and including dropped frames.
+     *
+     * @return
+     */
+    public long getNumber()
+    {
+      return this.number;
+    }
+
+
+    public Mat getImage()
+    {
+      return this.image;
+    }
+
+
+    /**
+     * Returns the candidates, best score first.
+     *
+     * @return
+     */
+    public List<CandidateResult> getCandidates()
+    {
+      return this.candidates;
+    }
+
+
+    /**
+     * Returns the time since the frame was captured.
+     *
+     * @return
+     */
+    public Duration getAge()
+    {
+      return Duration.ofNanos(System.nanoTime() - this.captureTime);
+    }
+  }
+
+  /**
+   * Processing times and dropped frames of one stage. Safe to read while the pipeline runs.
+   */
+  public static final class StageStatistics
+  {
+    private long frames;
+
+    private long dropped;
+
+    private long totalNanos;
+
+    private long maxNanos;
+
+
+    synchronized void record(final long nanos)
+    {
+      this.frames++;
+      this.totalNanos += nanos;
+      this.maxNanos = Math.max(this.maxNanos, nanos);
+    }
+
+
+    synchronized void recordDrop()
+    {
+      this.dropped++;
+    }
+
+
+    /**
+     * Returns the number of frames the stage has processed.
+     *
+     * @return
+     */
+    public synchronized long getFrameCount()
+    {
+      return this.frames;
+    }
+
+
+    /**
+     * Returns the number of frames dropped from the stage's queue before it got to them.
+     *
+     * @return
+     */
+    public synchronized long getDroppedCount()
+    {
+      return this.dropped;
+    }
+
+
+    public synchronized Duration getMeanLatency()
+    {
+      return Duration.ofNanos((this.frames == 0) ? 0 : (this.totalNanos / this.frames));
+    }
+
+
+    public synchronized Duration getMaxLatency()
+    {
+      return Duration.ofNanos(this.maxNanos);
+    }
+
+
+    @Override
+    public synchronized String toString()
+    {
+      return this.frames + " frames, " + this.dropped + " dropped, mean " + (this.getMeanLatency().toNanos() / 1e6)
+          + " ms, max " + (this.maxNanos / 1e6) + " ms";
+    }
+  }
+
+  /**
+   * Bounded queue in front of a stage.
+   */
+  private final class FrameQueue
+  {
+    private final LinkedBlockingDeque<Frame> frames;
+
+    private final DropPolicy policy;
+
+    private final StageStatistics statistics;
+
+
+    FrameQueue(final int capacity, final DropPolicy policy, final StageStatistics statistics)
+    {
+      this.frames = new LinkedBlockingDeque<>((policy == DropPolicy.LATEST_ONLY) ? 1 : capacity);
+      this.policy = policy;
+      this.statistics = statistics;
+    }
+
+
+    void put(final Frame frame) throws InterruptedException
+    {
+      if(this.policy == DropPolicy.BLOCK)
+      {
+        this.frames.putLast(frame);
+        return;
+      }
+
+      while(this.frames.offerLast(frame) == false)
+      {
+        final Frame oldest = this.frames.pollFirst();
+        if(oldest != null)
+        {
+          this.statistics.recordDrop();
+          VideoPipeline.this.recycle(oldest);
+        }
+      }
+    }
+
+
+    /**
+     * Queues the end of the stream. It is never dropped, so it waits for room whatever the policy.
+     *
+     * @throws InterruptedException
+     */
+    void putEnd() throws InterruptedException
+    {
+      this.frames.putLast(VideoPipeline.END_OF_STREAM);
+    }
+
+
+    Frame take() throws InterruptedException
+    {
+      return this.frames.takeFirst();
+    }
+
+
+    void clear()
+    {
+      Frame frame;
+      while((frame = this.frames.pollFirst()) != null)
+      {
+        VideoPipeline.this.recycle(frame);
+      }
+    }
+  }
+
+  private static final Frame END_OF_STREAM = new Frame(-1, 0, null);
+
+  private static final int DEFAULT_DECODE_QUEUE_CAPACITY = 4;
+
+  private final FrameSource source;
+
+  private final BarcodeFactory factory;
+
+  private final FrameDecoder decoder;
+
+  private final Map<Stage, StageStatistics> statistics = new EnumMap<>(Stage.class);
+
+  private FrameQueue localizeQueue;
+
+  private FrameQueue decodeQueue;
+
+  private Duration localizeBudget;
+
+  /**
+   * Images of finished frames the capture stage reads the next frames into.
+   */
+  private final ArrayDeque<Mat> spareImages = new ArrayDeque<>();
+
+  private int maxSpareImages;
+
+  private final List<Thread> threads = new ArrayList<>();
+
+  private volatile boolean running;
+
+  private volatile Throwable failure;
+
+
+  /**
+   * Creates a pipeline that keeps only the latest captured frame waiting for localization and up to 4 localized
+   * frames waiting for decoding, dropping the oldest.
+   *
+   * @param source
+   * @param factory
+   * @param decoder
+   */
+  public VideoPipeline(final FrameSource source, final BarcodeFactory factory, final FrameDecoder decoder)
+  {
+    this.source = source;
+    this.factory = factory;
+    this.decoder = decoder;
+
+    for(final Stage stage : Stage.values())
+    {
+      this.statistics.put(stage, new StageStatistics());
+    }
+
+    this.setQueue(Stage.LOCALIZE, 1, DropPolicy.LATEST_ONLY);
+    this.setQueue(Stage.DECODE, VideoPipeline.DEFAULT_DECODE_QUEUE_CAPACITY, DropPolicy.DROP_OLDEST);
+  }
+
+
+  /**
+   * Sets the capacity and drop policy of the queue in front of the LOCALIZE or DECODE stage. Must be called before
+   * start().
+   *
+   * @param stage
+   * @param capacity
+   * @param policy
+   */
+  public void setQueue(final Stage stage, final int capacity, final DropPolicy policy)
+  {
+    if(this.running == true)
+    {
+      throw new IllegalStateException("Queues cannot be changed while the pipeline runs");
+    }
+
+    final FrameQueue queue = new FrameQueue(capacity, policy, this.statistics.get(stage));
+
+    switch(stage)
+    {
+      case LOCALIZE:
+        this.localizeQueue = queue;
+        break;
+
+      case DECODE:
+        this.decodeQueue = queue;
+        break;
+
+      default:
+        throw new IllegalArgumentException("The " + stage + " stage has no queue");
+    }
+  }
+
+
+  /**
+   * Limits the time spent searching each frame, see Barcode.locateBarcode(Duration).
+   *
+   * @param budget time allowed per frame or null for no limit
+   */
+  public void setLocalizeBudget(final Duration budget)
+  {
+    this.localizeBudget = budget;
+  }
+
+
+  /**
+   * Starts the capture, localize and decode threads.
+   */
+  public synchronized void start()
+  {
+    if(this.running == true)
+    {
+      throw new IllegalStateException("The pipeline is already running");
+    }
+
+    // Every frame in a queue or a stage can hold an image, more are never given back at the same time.
+    this.maxSpareImages = this.localizeQueue.frames.remainingCapacity() + this.decodeQueue.frames.remainingCapacity()
+        + 3;
+    this.running = true;
+    this.failure = null;
+    this.threads.clear();
+    this.threads.add(new Thread(this::runCapture, "barcode-capture"));
+    this.threads.add(new Thread(this::runLocalize, "barcode-localize"));
+    this.threads.add(new Thread(this::runDecode, "barcode-decode"));
+
+    for(final Thread thread : this.threads)
+    {
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+
+  /**
+   * Waits until all frames of the source have been decoded or the pipeline has been stopped.
+   *
+   * @param timeout
+   * @return true if all stages have finished
+   * @throws InterruptedException
+   */
+  public boolean awaitTermination(final Duration timeout) throws InterruptedException
+  {
+    final long deadline = System.nanoTime() + timeout.toNanos();
+
+    for(final Thread thread : this.threads)
+    {
+      final long remaining = deadline - System.nanoTime();
+      if(remaining > 0)
+      {
+        thread.join(Math.max(1, remaining / 1000000));
+      }
+
+      if(thread.isAlive() == true)
+      {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+
+  /**
+   * Stops all stages and waits for them to finish. Frames still queued are dropped without being decoded.
+   */
+  public synchronized void stop()
+  {
+    this.running = false;
+
+    for(final Thread thread : this.threads)
+    {
+      thread.interrupt();
+    }
+
+    boolean interrupted = false;
+    for(final Thread thread : this.threads)
+    {
+      while(thread.isAlive() == true)
+      {
+        try
+        {
+          thread.join();
+        }
+        catch(final InterruptedException ie)
+        {
+          interrupted = true;
+        }
+      }
+    }
+
+    this.localizeQueue.clear();
+    this.decodeQueue.clear();
+
+    synchronized(this.spareImages)
+    {
+      for(final Mat image : this.spareImages)
+      {
+        MatTracker.release(image);
+      }
+      this.spareImages.clear();
+    }
+
+    if(interrupted == true)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+
+  /**
+   * Same as stop().
+   */
+  @Override
+  public void close()
+  {
+    this.stop();
+  }
+
+
+  public boolean isRunning()
+  {
+    return this.running;
+  }
+
+
+  /**
+   * Returns the exception that stopped the pipeline, or null.
+   *
+   * @return
+   */
+  public Throwable getFailure()
+  {
+    return this.failure;
+  }
+
+
+  public StageStatistics getStatistics(final Stage stage)
+  {
+    return this.statistics.get(stage);
+  }
+
+
+  private void runCapture()
+  {
+    final StageStatistics stats = this.statistics.get(Stage.CAPTURE);
+    long number = 0;
+
+    try
+    {
+      while(this.running == true)
+      {
+        final Mat image = this.takeSpareImage();
+        final long start = System.nanoTime();
+
+        if((this.source.read(image) == false) || (image.empty() == true))
+        {
+          MatTracker.release(image);
+          break;
+        }
+
+        stats.record(System.nanoTime() - start);
+        this.localizeQueue.put(new Frame(number++, start, image));
+      }
+
+      this.localizeQueue.putEnd();
+    }
+    catch(final InterruptedException ie)
+    {
+      // Stopped.
+    }
+    catch(final RuntimeException re)
+    {
+      this.fail(re);
+    }
+  }
+
+
+  private void runLocalize()
+  {
+    final StageStatistics stats = this.statistics.get(Stage.LOCALIZE);
+    Barcode barcode = null;
+    Frame frame = null;
+
+    try
+    {
+      while((frame = this.localizeQueue.take()) != VideoPipeline.END_OF_STREAM)
+      {
+        final long start = System.nanoTime();
+        final String name = "Frame " + frame.number;
+
+        if(barcode == null)
+        {
+          barcode = this.factory.create(name, frame.image);
+        }
+        else
+        {
+          Barcode.updateImage(barcode, frame.image, name);
+        }
+
+        // The Barcode reuses its result list for the next frame.
+        frame.candidates = new ArrayList<>(barcode.locateBarcode(this.localizeBudget));
+        stats.record(System.nanoTime() - start);
+
+        // A frame is only queued once put() returns, until then it is recycled here if the stage is stopped.
+        this.decodeQueue.put(frame);
+        frame = null;
+      }
+
+      this.decodeQueue.putEnd();
+    }
+    catch(final InterruptedException ie)
+    {
+      // Stopped.
+    }
+    catch(final IOException | RuntimeException e)
+    {
+      this.fail(e);
+    }
+    finally
+    {
+      if((frame != null) && (frame != VideoPipeline.END_OF_STREAM))
+      {
+        this.recycle(frame);
+      }
+
+      if(barcode != null)
+      {
+        barcode.close();
+      }
+    }
+  }
+
+
+  private void runDecode()
+  {
+    final StageStatistics stats = this.statistics.get(Stage.DECODE);
+    Frame frame = null;
+
+    try
+    {
+      while((frame = this.decodeQueue.take()) != VideoPipeline.END_OF_STREAM)
+      {
+        final long start = System.nanoTime();
+        this.decoder.decode(frame);
+        stats.record(System.nanoTime() - start);
+
+        this.recycle(frame);
+      }
+
+      frame = null;
+      this.running = false;
+    }
+    catch(final InterruptedException ie)
+    {
+      frame = null;
+    }
+    catch(final RuntimeException re)
+    {
+      this.fail(re);
+    }
+    finally
+    {
+      if(frame != null)
+      {
+        this.recycle(frame);
+      }
+    }
+  }
+
+
+  /**
+   * Records the first failure and stops the other stages. They cannot be joined from here, stop() does that.
+   *
+   * @param t
+   */
+  private void fail(final Throwable t)
+  {
+    if(this.failure == null)
+    {
+      this.failure = t;
+    }
+
+    this.running = false;
+
+    for(final Thread thread : this.threads)
+    {
+      if(thread != Thread.currentThread())
+      {
+        thread.interrupt();
+      }
+    }
+  }
+
+
+  private Mat takeSpareImage()
+  {
+    synchronized(this.spareImages)
+    {
+      final Mat image = this.spareImages.pollFirst();
+      return (image != null) ? image : MatTracker.track(new Mat());
+    }
+  }
+
+
+  /**
+   * Releases the candidates of a finished or dropped frame and keeps its image for capturing another frame, which
+   * VideoCapture.read() does without reallocating it when the size stays the same.
+   *
+   * @param frame
+   */
+  private void recycle(final Frame frame)
+  {
+    for(final CandidateResult result : frame.candidates)
+    {
+      result.close();
+    }
+    frame.candidates = Collections.emptyList();
+
+    synchronized(this.spareImages)
+    {
+      if((this.running == true) && (this.spareImages.size() < this.maxSpareImages))
+      {
+        this.spareImages.addLast(frame.image);
+        return;
+      }
+    }
+
+    MatTracker.release(frame.image);
+  }
+}
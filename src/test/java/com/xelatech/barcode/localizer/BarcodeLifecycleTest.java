@@ -0,0 +1,128 @@
+package com.xelatech.barcode.localizer;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+
+
+/**
+ * Checks that a Barcode frees or gives back every Mat it allocated once it and its results are closed, whichever
+ * search paths swapped views in and out of its ImageInfo.
+ */
+public class BarcodeLifecycleTest
+{
+  static
+  {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+  }
+
+  private MatPool pool;
+
+  private Mat first;
+
+  private Mat second;
+
+
+  @Before
+  public void setUp()
+  {
+    MatTracker.setEnabled(true);
+    this.pool = new MatPool(64);
+    Barcode.setMatPool(this.pool);
+
+    this.first = BarcodeLifecycleTest.createImage(100, 150);
+    this.second = BarcodeLifecycleTest.createImage(250, 400);
+  }
+
+
+  @After
+  public void tearDown()
+  {
+    Barcode.setMatPool(null);
+    MatTracker.setEnabled(false);
+    this.pool.clear();
+    this.first.release();
+    this.second.release();
+  }
+
+
+  @Test
+  public void closeReleasesEveryMat() throws IOException
+  {
+    try(Barcode barcode = new MatrixBarcode("lifecycle", this.first, TryHarderFlags.NORMAL))
+    {
+      BarcodeLifecycleTest.close(barcode.locateBarcode());
+
+      assertTrue(Barcode.updateImage(barcode, this.second));
+      BarcodeLifecycleTest.close(barcode.locateBarcode());
+
+      BarcodeLifecycleTest.close(barcode.locateBarcode(new Rect(0, 0, 450, 350), new Rect(400, 300, 400, 300)));
+
+      // The first search looks at the whole image, the next ones only around what it found.
+      barcode.setTracking(3);
+      BarcodeLifecycleTest.close(barcode.locateBarcode());
+      BarcodeLifecycleTest.close(barcode.locateBarcode());
+    }
+
+    assertEquals(0, MatTracker.getLiveMatCount());
+    assertEquals(0, MatTracker.getLiveMatBytes());
+
+    // Every Mat the pool allocated went back into it.
+    assertEquals(this.pool.getMisses(), this.pool.getSize() + this.pool.getEvictions());
+    assertTrue(this.pool.getHits() > 0);
+
+    // An image of a size seen before is searched without allocating.
+    final long misses = this.pool.getMisses();
+    try(Barcode barcode = new MatrixBarcode("lifecycle again", this.first, TryHarderFlags.NORMAL))
+    {
+      BarcodeLifecycleTest.close(barcode.locateBarcode());
+    }
+
+    assertEquals(misses, this.pool.getMisses());
+    assertEquals(0, MatTracker.getLiveMatCount());
+  }
+
+
+  private static void close(final List<CandidateResult> results)
+  {
+    for(final CandidateResult result : results)
+    {
+      result.close();
+    }
+  }
+
+
+  /**
+   * Flat 600 x 800 image with a square checkerboard, the kind of region a matrix code search finds.
+   *
+   * @param top
+   * @param left
+   * @return
+   */
+  private static Mat createImage(final int top, final int left)
+  {
+    final Mat image = new Mat(600, 800, CvType.CV_8UC3, new Scalar(128, 128, 128));
+
+    for(int y = 0; y < 300; y += 10)
+    {
+      for(int x = (((y / 10) % 2) == 0) ? 0 : 10; x < 300; x += 20)
+      {
+        image.submat(top + y, top + y + 10, left + x, left + x + 10).setTo(new Scalar(0, 0, 0));
+      }
+    }
+
+    return image;
+  }
+}
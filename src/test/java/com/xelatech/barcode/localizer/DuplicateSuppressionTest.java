@@ -0,0 +1,96 @@
+package com.xelatech.barcode.localizer;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.Point;
+import org.opencv.core.RotatedRect;
+import org.opencv.core.Size;
+
+
+/**
+ * Checks the non-maximum suppression of candidate regions on synthetic rotated rectangles.
+ */
+public class DuplicateSuppressionTest
+{
+  static
+  {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+  }
+
+  private final SearchParameters params = SearchParameters.getNormalParameters();
+
+
+  @Test
+  public void overlappingCandidatesKeepBestScore()
+  {
+    final BarcodeCandidate best = this.candidate(Barcode.CodeType.MATRIX, 100, 100, 80, 40, 0, 0.9);
+    final BarcodeCandidate shifted = this.candidate(Barcode.CodeType.MATRIX, 105, 102, 80, 40, 0, 0.8);
+    final BarcodeCandidate rotated = this.candidate(Barcode.CodeType.MATRIX, 100, 100, 40, 80, 90, 0.7);
+    final BarcodeCandidate apart = this.candidate(Barcode.CodeType.MATRIX, 300, 100, 80, 40, 0, 0.5);
+
+    final List<BarcodeCandidate> found = Arrays.asList(apart, rotated, shifted, best);
+    final List<BarcodeCandidate> kept = Barcode.suppressDuplicates(found);
+
+    // The same rectangle with width and height swapped at 90 degrees is the same region.
+    assertEquals(2, kept.size());
+    assertSame(best, kept.get(0));
+    assertSame(apart, kept.get(1));
+    assertEquals(2, found.size() - kept.size());
+  }
+
+
+  @Test
+  public void nestedCandidatesAreSuppressedByOverlapRatio()
+  {
+    final BarcodeCandidate outer = this.candidate(Barcode.CodeType.LINEAR, 200, 200, 100, 100, 0, 0.6);
+    // Intersection over union 0.64, the same barcode found as a contour inside another.
+    final BarcodeCandidate inner = this.candidate(Barcode.CodeType.LINEAR, 200, 200, 80, 80, 0, 0.7);
+    // A separate small region inside the others, intersection over union at most 0.25 with either.
+    final BarcodeCandidate small = this.candidate(Barcode.CodeType.LINEAR, 180, 180, 40, 40, 30, 0.4);
+
+    final List<BarcodeCandidate> found = Arrays.asList(outer, small, inner);
+    final List<BarcodeCandidate> kept = Barcode.suppressDuplicates(found);
+
+    assertEquals(2, kept.size());
+    assertSame(inner, kept.get(0));
+    assertSame(small, kept.get(1));
+    assertEquals(1, found.size() - kept.size());
+  }
+
+
+  @Test
+  public void candidatesOfOtherCodeTypeAreKept()
+  {
+    final BarcodeCandidate linear = this.candidate(Barcode.CodeType.LINEAR, 100, 100, 80, 40, 0, 0.5);
+    final BarcodeCandidate matrix = this.candidate(Barcode.CodeType.MATRIX, 100, 100, 80, 40, 0, 0.8);
+    final BarcodeCandidate duplicate = this.candidate(Barcode.CodeType.LINEAR, 102, 100, 80, 40, 0, 0.3);
+
+    final List<BarcodeCandidate> found = Arrays.asList(linear, duplicate, matrix);
+    final List<BarcodeCandidate> kept = Barcode.suppressDuplicates(found);
+
+    assertEquals(2, kept.size());
+    assertSame(matrix, kept.get(0));
+    assertSame(linear, kept.get(1));
+    assertEquals(1, found.size() - kept.size());
+  }
+
+
+  private BarcodeCandidate candidate(final Barcode.CodeType codeType, final double x, final double y,
+      final double width, final double height, final double angle, final double score)
+  {
+    final BarcodeCandidate candidate = new BarcodeCandidate(null,
+        new RotatedRect(new Point(x, y), new Size(width, height), angle), this.params, codeType)
+    {
+    };
+    candidate.score = score;
+
+    return candidate;
+  }
+}
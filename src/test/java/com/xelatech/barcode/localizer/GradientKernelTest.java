@@ -0,0 +1,196 @@
+package com.xelatech.barcode.localizer;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+
+/**
+ * Checks the Java port of the gradient direction and edge calculation against the chain of OpenCV calls it replaced,
+ * and its atan and Otsu threshold against reference calculations.
+ */
+public class GradientKernelTest
+{
+  /**
+   * Largest error of the atan approximation of Core.phase, in degrees.
+   */
+  private static final double ATAN2_TOLERANCE = 0.02;
+
+
+  @Test
+  public void fastAtan2MatchesAtan2()
+  {
+    final Random random = new Random(1);
+    for(int i = 0; i < 100000; i++)
+    {
+      final float x = (float)(random.nextGaussian() * 100);
+      final float y = (float)(random.nextGaussian() * 100);
+
+      double expected = Math.toDegrees(Math.atan2(y, x));
+      if(expected < 0)
+      {
+        expected += 360;
+      }
+
+      final double difference = Math.abs(GradientKernel.fastAtan2(y, x) - expected);
+      assertTrue(x + ", " + y, Math.min(difference, 360 - difference) < GradientKernelTest.ATAN2_TOLERANCE);
+    }
+
+    assertEquals(0, GradientKernel.fastAtan2(0, 0), 0);
+    assertEquals(90, GradientKernel.fastAtan2(1, 0), GradientKernelTest.ATAN2_TOLERANCE);
+    assertEquals(180, GradientKernel.fastAtan2(0, -1), GradientKernelTest.ATAN2_TOLERANCE);
+    assertEquals(270, GradientKernel.fastAtan2(-1, 0), GradientKernelTest.ATAN2_TOLERANCE);
+  }
+
+
+  @Test
+  public void otsuThresholdMaximizesBetweenClassVariance()
+  {
+    // Two spikes are split by any level between them, the first one is taken.
+    final int[] spikes = new int[256];
+    spikes[50] = 300;
+    spikes[200] = 100;
+    assertEquals(50, GradientKernel.calcOtsuThreshold(spikes, 400));
+
+    final Random random = new Random(2);
+    for(int n = 0; n < 100; n++)
+    {
+      final int[] histogram = new int[256];
+      int total = 0;
+      for(int i = 0; i < 1000; i++)
+      {
+        // Mostly dark background with a brighter, spread out foreground.
+        final int level = (random.nextInt(4) == 0) ? 120 + random.nextInt(136) : random.nextInt(80);
+        histogram[level]++;
+        total++;
+      }
+
+      assertEquals(GradientKernelTest.otsuThreshold(histogram),
+          GradientKernel.calcOtsuThreshold(histogram, total));
+    }
+  }
+
+
+  @Test
+  public void directionsMatchOpenCvChain()
+  {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+    final int rows = 120;
+    final int cols = 160;
+    final Mat scharrX = new Mat(rows, cols, CvType.CV_32F);
+    final Mat scharrY = new Mat(rows, cols, CvType.CV_32F);
+    Core.randn(scharrX, 0, 200);
+    Core.randn(scharrY, 0, 200);
+
+    final GradientKernel kernel = new GradientKernel();
+    kernel.calculate(scharrX, scharrY);
+
+    // Directions folded to 0-180 with 170-180 set to 0, then rounded.
+    final Mat angle = new Mat();
+    final Mat mask = new Mat();
+    Core.phase(scharrX, scharrY, angle, true);
+    Core.inRange(angle, new Scalar(180), new Scalar(360), mask);
+    Core.subtract(angle, new Scalar(180), angle, mask);
+    Core.inRange(angle, new Scalar(170), new Scalar(180), mask);
+    angle.setTo(new Scalar(0), mask);
+    final Mat direction = new Mat();
+    angle.convertTo(direction, CvType.CV_8U);
+
+    // Edges are pixels above the Otsu threshold of the normalized magnitude.
+    final Mat magnitude = new Mat();
+    final Mat normalized = new Mat();
+    final Mat edges = new Mat();
+    Core.magnitude(scharrX, scharrY, magnitude);
+    Core.normalize(magnitude, normalized, 0, 255, Core.NORM_MINMAX, CvType.CV_8U);
+    Imgproc.threshold(normalized, edges, 0, 255, Imgproc.THRESH_BINARY | Imgproc.THRESH_OTSU);
+
+    final byte[] expectedDirections = new byte[rows * cols];
+    final byte[] expectedEdges = new byte[rows * cols];
+    direction.get(0, 0, expectedDirections);
+    edges.get(0, 0, expectedEdges);
+
+    // Core.phase may round differently from the scalar port in its vectorized loop, which can move a direction that is
+    // almost exactly halfway between two degrees to the other one.
+    int directionMismatches = 0;
+    for(int i = 0; i < (rows * cols); i++)
+    {
+      final int actual = kernel.directions[i] & 0xFF;
+      if(expectedEdges[i] == 0)
+      {
+        assertEquals("pixel " + i, GradientKernel.DUMMY_ANGLE, actual);
+      }
+      else
+      {
+        assertTrue("pixel " + i, actual != GradientKernel.DUMMY_ANGLE);
+        if(actual != ((expectedDirections[i] & 0xFF) + 1))
+        {
+          directionMismatches++;
+        }
+      }
+    }
+
+    assertTrue(Integer.toString(directionMismatches), directionMismatches <= ((rows * cols) / 1000));
+
+    for(final Mat mat : new Mat[] { scharrX, scharrY, angle, mask, direction, magnitude, normalized, edges })
+    {
+      mat.release();
+    }
+  }
+
+
+  /**
+   * Level that maximizes the between-class variance of pixels at or below it and pixels above it, computed directly
+   * from its definition.
+   *
+   * @param histogram
+   * @return
+   */
+  private static int otsuThreshold(final int[] histogram)
+  {
+    double bestSigma = 0;
+    int best = 0;
+    for(int t = 0; t < 256; t++)
+    {
+      double n1 = 0, sum1 = 0, n2 = 0, sum2 = 0;
+      for(int i = 0; i < 256; i++)
+      {
+        if(i <= t)
+        {
+          n1 += histogram[i];
+          sum1 += i * (double)histogram[i];
+        }
+        else
+        {
+          n2 += histogram[i];
+          sum2 += i * (double)histogram[i];
+        }
+      }
+
+      if((n1 == 0) || (n2 == 0))
+      {
+        continue;
+      }
+
+      final double total = n1 + n2;
+      final double difference = (sum1 / n1) - (sum2 / n2);
+      final double sigma = (n1 / total) * (n2 / total) * difference * difference;
+      if(sigma > (bestSigma + 1e-9))
+      {
+        bestSigma = sigma;
+        best = t;
+      }
+    }
+
+    return best;
+  }
+}
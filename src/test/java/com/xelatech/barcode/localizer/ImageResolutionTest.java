@@ -0,0 +1,56 @@
+package com.xelatech.barcode.localizer;
+
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.Test;
+
+
+/**
+ * Checks the resolution of images placed on PDF pages.
+ */
+public class ImageResolutionTest
+{
+  @Test
+  public void scannedPageResolutionIsFromPageSize() throws IOException
+  {
+    try(PDDocument document = new PDDocument())
+    {
+      // A4 scanned at 300 dpi, upright and in landscape.
+      final PDPage page = new PDPage(PDRectangle.A4);
+
+      assertEquals(ImageResolution.fromDpi(300),
+          ImageResolution.fromPdfImage(ImageResolutionTest.createImage(document, 2480, 3508), page), 0.05);
+      assertEquals(ImageResolution.fromDpi(300),
+          ImageResolution.fromPdfImage(ImageResolutionTest.createImage(document, 3508, 2480), page), 0.05);
+    }
+  }
+
+
+  @Test
+  public void imageNotCoveringPageHasNoResolution() throws IOException
+  {
+    try(PDDocument document = new PDDocument())
+    {
+      final PDPage page = new PDPage(PDRectangle.A4);
+
+      assertEquals(0, ImageResolution.fromPdfImage(ImageResolutionTest.createImage(document, 200, 80), page), 0);
+      assertEquals(0, ImageResolution.fromPdfImage(ImageResolutionTest.createImage(document, 2480, 2480), page), 0);
+    }
+  }
+
+
+  private static PDImageXObject createImage(final PDDocument document, final int width, final int height)
+      throws IOException
+  {
+    return LosslessFactory.createFromImage(document, new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY));
+  }
+}
@@ -0,0 +1,247 @@
+package com.xelatech.barcode.localizer;
+
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Checks the tile counts read from the integral images, and the tile probabilities calculated from them, against a
+ * direct count over the pixels of every tile as the per-tile Core.inRange/Core.sortIdx implementation did it.
+ */
+public class IntegralHistogramTest
+{
+  /**
+   * Neither side is a multiple of the tile sizes, so tiles at the right and bottom edges are clipped.
+   */
+  private static final int ROWS = 70;
+
+  private static final int COLS = 53;
+
+  private GradientKernel gradients;
+
+  private IntegralHistogram histogram;
+
+
+  @Before
+  public void setUp()
+  {
+    this.gradients = new GradientKernel();
+    this.gradients.rows = IntegralHistogramTest.ROWS;
+    this.gradients.cols = IntegralHistogramTest.COLS;
+    this.gradients.directions = new byte[IntegralHistogramTest.ROWS * IntegralHistogramTest.COLS];
+
+    for(int y = 0; y < IntegralHistogramTest.ROWS; y++)
+    {
+      for(int x = 0; x < IntegralHistogramTest.COLS; x++)
+      {
+        final int value;
+        if((y >= 20) && (y < 40))
+        {
+          // Band of two perpendicular directions, the pattern that scores high.
+          value = (((x / 2) % 2) == 0) ? 1 : 91;
+        }
+        else
+        {
+          // Every direction including those on bin boundaries, and pixels that are not edges.
+          final int v = ((x * 7) + (y * 13) + (x * y)) % 190;
+          value = (v < 171) ? v + 1 : GradientKernel.DUMMY_ANGLE;
+        }
+
+        this.gradients.directions[(y * IntegralHistogramTest.COLS) + x] = (byte)value;
+      }
+    }
+
+    this.histogram = new IntegralHistogram();
+    this.histogram.calculate(this.gradients);
+  }
+
+
+  @Test
+  public void rectSumMatchesDirectCount()
+  {
+    for(final int tileSize : new int[] {1, 4, 16})
+    {
+      for(int i = 0; i < IntegralHistogramTest.ROWS; i += tileSize)
+      {
+        for(int j = 0; j < IntegralHistogramTest.COLS; j += tileSize)
+        {
+          final int[] expected = this.countTile(i, i + tileSize, j, j + tileSize);
+          final String tile = "tile " + tileSize + " at " + i + "," + j;
+
+          assertEquals(tile + " edges", expected[0],
+              this.histogram.rectSum(this.histogram.edges, i, i + tileSize, j, j + tileSize));
+          for(int r = 0; r < ImageInfo.bins; r++)
+          {
+            assertEquals(tile + " bin " + r, expected[r + 1],
+                this.histogram.rectSum(this.histogram.planes[r], i, i + tileSize, j, j + tileSize));
+          }
+        }
+      }
+    }
+  }
+
+
+  @Test
+  public void pyramidLevelsMatchDirectCount()
+  {
+    final TilePyramid pyramid = new TilePyramid();
+    pyramid.build(this.histogram, 2);
+
+    for(final int tileSize : new int[] {2, 8, 32})
+    {
+      final TilePyramid.Level level = pyramid.level(tileSize);
+
+      for(int tileRow = 0; tileRow < level.rows; tileRow++)
+      {
+        for(int tileCol = 0; tileCol < level.cols; tileCol++)
+        {
+          final int i = tileRow * tileSize;
+          final int j = tileCol * tileSize;
+          final int tile = ((tileRow * level.cols) + tileCol) * TilePyramid.CHANNELS;
+
+          assertEquals("tile " + tileSize + " at " + i + "," + j, Arrays.toString(this.countTile(i, i + tileSize, j,
+              j + tileSize)), Arrays.toString(Arrays.copyOfRange(level.counts, tile, tile + TilePyramid.CHANNELS)));
+        }
+      }
+    }
+  }
+
+
+  @Test
+  public void tileProbabilityMatchesSortedBins()
+  {
+    final TilePyramid pyramid = new TilePyramid();
+    pyramid.build(this.histogram, 4);
+
+    final TilePyramid.Level level = pyramid.level(4);
+    final int[] hist = new int[ImageInfo.bins];
+    int barcodeTiles = 0;
+
+    for(int tileRow = 0; tileRow < level.rows; tileRow++)
+    {
+      for(int tileCol = 0; tileCol < level.cols; tileCol++)
+      {
+        final int i = tileRow * 4;
+        final int j = tileCol * 4;
+        final int[] expected = this.countTile(i, i + 4, j, j + 4);
+        if(expected[0] == 0)
+        {
+          continue;
+        }
+
+        System.arraycopy(level.counts, (((tileRow * level.cols) + tileCol) * TilePyramid.CHANNELS) + 1, hist, 0,
+            ImageInfo.bins);
+
+        final double probability = IntegralHistogramTest.sortedBinProbability(Arrays.copyOfRange(expected, 1,
+            expected.length));
+        assertEquals("tile at " + i + "," + j, probability, Barcode.calcTileProbability(hist), 0);
+
+        if(probability > 0.5)
+        {
+          barcodeTiles++;
+        }
+      }
+    }
+
+    // The band of perpendicular directions must have been scored, or the comparison proves little.
+    assertEquals(true, barcodeTiles > 0);
+  }
+
+
+  @Test
+  public void tileProbabilityBreaksTiesLikeSortIdx()
+  {
+    final int[][] histograms = {
+        {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+        {5, 0, 0, 0, 0, 0, 5, 0, 0, 0, 0, 0},
+        {5, 5, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+        {5, 0, 5, 0, 0, 0, 0, 0, 0, 0, 0, 5},
+        {3, 9, 0, 9, 0, 0, 0, 0, 0, 0, 0, 0},
+        {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 7, 2},
+        {1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1}};
+
+    for(final int[] hist : histograms)
+    {
+      assertEquals(Arrays.toString(hist), IntegralHistogramTest.sortedBinProbability(hist),
+          Barcode.calcTileProbability(hist), 0);
+    }
+  }
+
+
+  /**
+   * Counts the edges and the pixels of every bin in a tile directly. Bin r holds directions 1 + r * BIN_WIDTH to
+   * 1 + (r + 1) * BIN_WIDTH inclusive, as Core.inRange selected them.
+   *
+   * @return number of edges followed by the count of each bin
+   */
+  private int[] countTile(final int top, final int bottom, final int left, final int right)
+  {
+    final int[] counts = new int[TilePyramid.CHANNELS];
+
+    for(int y = top; y < Math.min(bottom, IntegralHistogramTest.ROWS); y++)
+    {
+      for(int x = left; x < Math.min(right, IntegralHistogramTest.COLS); x++)
+      {
+        final int value = this.gradients.directions[(y * IntegralHistogramTest.COLS) + x] & 0xFF;
+        if(value == GradientKernel.DUMMY_ANGLE)
+        {
+          continue;
+        }
+
+        counts[0]++;
+        for(int r = 0; r < ImageInfo.bins; r++)
+        {
+          final int low = 1 + (r * ImageInfo.BIN_WIDTH);
+          if((value >= low) && (value <= (low + ImageInfo.BIN_WIDTH)))
+          {
+            counts[r + 1]++;
+          }
+        }
+      }
+    }
+
+    return counts;
+  }
+
+
+  /**
+   * Probability of a tile as the Core.sortIdx implementation calculated it: bin indices sorted by descending count,
+   * equal counts with the higher index first, and the formula applied to the first two.
+   */
+  private static double sortedBinProbability(final int[] hist)
+  {
+    final Integer[] order = new Integer[hist.length];
+    for(int r = 0; r < hist.length; r++)
+    {
+      order[r] = r;
+    }
+
+    Arrays.sort(order, new Comparator<Integer>()
+    {
+      @Override
+      public int compare(final Integer a, final Integer b)
+      {
+        return (hist[a] != hist[b]) ? Integer.compare(hist[b], hist[a]) : Integer.compare(b, a);
+      }
+    });
+
+    final int max_angle_idx = order[0];
+    final int second_highest_angle_idx = order[1];
+    if(Math.abs(max_angle_idx - second_highest_angle_idx) == 1)
+    {
+      return 0;
+    }
+
+    final int max_angle_count = hist[max_angle_idx];
+    final int second_highest_angle_count = hist[second_highest_angle_idx];
+
+    return (2.0 * Math.min(max_angle_count, second_highest_angle_count))
+        / (max_angle_count + second_highest_angle_count);
+  }
+}
@@ -0,0 +1,122 @@
+package com.xelatech.barcode.localizer;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+
+/**
+ * Checks that tile probabilities calculated in bands on an executor are identical to those calculated in the calling
+ * thread.
+ */
+public class ParallelTilingTest
+{
+  static
+  {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+  }
+
+  private static final int SIZE = 500;
+
+
+  @Test
+  public void parallelMatchesSerial() throws IOException
+  {
+    final Mat image = ParallelTilingTest.createImage();
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    // SMALL tiles of a 500 x 500 image give a grid above PARALLEL_TILING_MIN_TILES at the finest tile size and below it
+    // at the coarser ones, so both paths are compared.
+    try(Barcode barcode = new MatrixBarcode("tiling", image, TryHarderFlags.SMALL))
+    {
+      barcode.calcGradientDirectionAndMagnitude();
+      barcode.imgDetails.pyramid.build(barcode.imgDetails.histogram, barcode.searchParams.tileSize);
+
+      boolean above = false, below = false;
+
+      for(int tileSize = barcode.searchParams.tileSize; (tileSize < barcode.rows)
+          && (tileSize < barcode.cols); tileSize *= TilePyramid.LEVEL_FACTOR)
+      {
+        final TilePyramid.Level level = barcode.imgDetails.pyramid.level(tileSize);
+        if((level.rows * level.cols) >= Barcode.PARALLEL_TILING_MIN_TILES)
+        {
+          above = true;
+        }
+        else
+        {
+          below = true;
+        }
+
+        barcode.setParallelTiling((ExecutorService)null);
+        final byte[] serial = ParallelTilingTest.toBytes(barcode.calcProbabilityTilings(tileSize));
+
+        barcode.setParallelTiling(executor);
+        final byte[] parallel = ParallelTilingTest.toBytes(barcode.calcProbabilityTilings(tileSize));
+
+        assertArrayEquals("tile size " + tileSize, serial, parallel);
+      }
+
+      assertTrue("no tile grid above the parallel threshold", above);
+      assertTrue("no tile grid below the parallel threshold", below);
+    }
+    finally
+    {
+      executor.shutdown();
+      image.release();
+    }
+  }
+
+
+  /**
+   * Noise with blocks of stripes and of a checkerboard, so that tile probabilities vary across the image.
+   *
+   * @return
+   */
+  private static Mat createImage()
+  {
+    final int size = ParallelTilingTest.SIZE;
+    final byte[] pixels = new byte[size * size];
+    int seed = 12345;
+
+    for(int y = 0; y < size; y++)
+    {
+      for(int x = 0; x < size; x++)
+      {
+        seed = (seed * 1103515245) + 12345;
+        int value = 96 + ((seed >>> 16) & 0x3F);
+
+        if((y >= 50) && (y < 200) && (x >= 60) && (x < 300))
+        {
+          value = (((x / 4) % 2) == 0) ? 20 : 235;
+        }
+        else if((y >= 280) && (y < 440) && (x >= 250) && (x < 410))
+        {
+          value = ((((x / 6) + (y / 6)) % 2) == 0) ? 20 : 235;
+        }
+
+        pixels[(y * size) + x] = (byte)value;
+      }
+    }
+
+    final Mat image = new Mat(size, size, CvType.CV_8U);
+    image.put(0, 0, pixels);
+    return image;
+  }
+
+
+  private static byte[] toBytes(final Mat mat)
+  {
+    final byte[] bytes = new byte[(int)mat.total()];
+    mat.get(0, 0, bytes);
+    return bytes;
+  }
+}
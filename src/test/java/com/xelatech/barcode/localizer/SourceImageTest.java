@@ -0,0 +1,49 @@
+package com.xelatech.barcode.localizer;
+
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.opencv.core.Rect;
+
+
+/**
+ * Checks that regions computed from a reduced image are clamped to the full resolution image they are read from.
+ */
+public class SourceImageTest
+{
+  @Test
+  public void regionInsideImageIsKept()
+  {
+    final Rect region = new Rect(10, 20, 30, 40);
+    SourceImage.clamp(region, 1001, 701);
+
+    assertEquals(new Rect(10, 20, 30, 40), region);
+  }
+
+
+  @Test
+  public void regionOverEdgesIsCut()
+  {
+    // 1001 x 701 pixels read every 4th pixel give 251 x 176, which scale back up to 1004 x 704.
+    final Rect region = new Rect(990, 690, 14, 14);
+    SourceImage.clamp(region, 1001, 701);
+
+    assertEquals(new Rect(990, 690, 11, 11), region);
+
+    final Rect negative = new Rect(-4, -4, 10, 10);
+    SourceImage.clamp(negative, 1001, 701);
+
+    assertEquals(new Rect(0, 0, 6, 6), negative);
+  }
+
+
+  @Test
+  public void regionBeyondEdgesKeepsLastPixel()
+  {
+    final Rect region = new Rect(1002, 703, 2, 1);
+    SourceImage.clamp(region, 1001, 701);
+
+    assertEquals(new Rect(1000, 700, 1, 1), region);
+  }
+}
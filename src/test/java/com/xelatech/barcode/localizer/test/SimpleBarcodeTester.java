@@ -4,10 +4,12 @@ import java.awt.Graphics2D;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
@@ -32,8 +34,10 @@ import com.xelatech.barcode.localizer.Barcode;
 import com.xelatech.barcode.localizer.CandidateResult;
 import com.xelatech.barcode.localizer.ImageDisplay;
 import com.xelatech.barcode.localizer.LinearBarcode;
+import com.xelatech.barcode.localizer.MatLuminanceSource;
 import com.xelatech.barcode.localizer.MatrixBarcode;
 import com.xelatech.barcode.localizer.TryHarderFlags;
+import com.xelatech.barcode.localizer.VideoPipeline;
 
 public class SimpleBarcodeTester {
 
@@ -184,58 +188,62 @@ public class SimpleBarcodeTester {
 		double frames_per_second;
 		int frame_count;
 		final Mat image = new Mat();
-		Barcode barcode = null;
-		final Map<CharSequence, BarcodeLocation> foundCodes = new HashMap<CharSequence, BarcodeLocation>();
-
-		try {
-			frames_per_second = video.get(SimpleBarcodeTester.CV_CAP_PROP_FPS);
-			frame_count = (int) video.get(SimpleBarcodeTester.CV_FRAME_COUNT);
-
-			System.out.println("FPS is " + frames_per_second);
-			System.out.println("Frame count is " + frame_count);
-			video.read(image);
-			final ImageDisplay videoDisp = ImageDisplay.getImageFrame(image, "Video Frames");
-
-			final long end_time = System.currentTimeMillis() + 240000;
-			int i = 0;
-			while (System.currentTimeMillis() < end_time) {
-				i += 1;
-				video.read(image);
-				final String imgName = caption + "_" + System.currentTimeMillis();
-
-				if (barcode == null) {
-					barcode = new MatrixBarcode(imgName, image, TryHarderFlags.VERY_SMALL_MATRIX);
-				} else {
-					if (!Barcode.updateImage(barcode, image, imgName)) {
-						barcode = new MatrixBarcode(imgName, image, TryHarderFlags.VERY_SMALL_MATRIX);
+		final Map<CharSequence, BarcodeLocation> foundCodes = new ConcurrentHashMap<CharSequence, BarcodeLocation>();
+
+		frames_per_second = video.get(SimpleBarcodeTester.CV_CAP_PROP_FPS);
+		frame_count = (int) video.get(SimpleBarcodeTester.CV_FRAME_COUNT);
+
+		System.out.println("FPS is " + frames_per_second);
+		System.out.println("Frame count is " + frame_count);
+		video.read(image);
+		final ImageDisplay videoDisp = ImageDisplay.getImageFrame(image, "Video Frames");
+
+		// Capture, localization and decoding run in their own threads, so the camera
+		// is read at its own rate and localization always gets the latest frame.
+		final VideoPipeline pipeline = new VideoPipeline(video::read,
+				(name, img) -> {
+					// Between full searches of every 10th frame only look around the codes found.
+					final Barcode barcode = new MatrixBarcode(caption + "_" + name, img,
+							TryHarderFlags.VERY_SMALL_MATRIX);
+					barcode.setTracking(10);
+					return barcode;
+				},
+				frame -> {
+					final int i = (int) frame.getNumber();
+					final Map<CharSequence, BarcodeLocation> frame_results = SimpleBarcodeTester
+							.decodeBarcodeFromVideo(frame.getCandidates(), i);
+					foundCodes.putAll(frame_results);
+					System.out.println("Processed frame " + i + "- Found " + frame_results.size() + " results");
+
+					final Mat frameImage = frame.getImage();
+					for (final BarcodeLocation bl : frame_results.values()) {
+						final Point[] rectPoints = bl.coords;
+						final Scalar colour = new Scalar(255, 0, 0);
+						for (int j = 0; j < 3; j++) {
+							Imgproc.line(frameImage, rectPoints[j], rectPoints[j + 1], colour, 2, Imgproc.LINE_AA, 0);
+						}
+						Imgproc.line(frameImage, rectPoints[3], rectPoints[0], colour, 2, Imgproc.LINE_AA, 0);
 					}
-				}
-
-				// locateBarcode() returns a List<CandidateResult> with all possible candidate
-				// barcode regions from within the image. These images then get passed to a
-				// decoder(we use ZXing here but could be any decoder)
+					videoDisp.updateImage(frameImage, "Video frame " + i);
+				});
 
-				final List<CandidateResult> results = barcode.locateBarcode();
-
-				final Map<CharSequence, BarcodeLocation> frame_results = SimpleBarcodeTester
-						.decodeBarcodeFromVideo(results, i);
-				foundCodes.putAll(frame_results);
-				System.out.println("Processed frame " + i + "- Found " + frame_results.size() + " results");
+		pipeline.start();
+		try {
+			pipeline.awaitTermination(Duration.ofMillis(240000));
+		} catch (final InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} finally {
+			pipeline.stop();
+		}
 
-				for (final BarcodeLocation bl : frame_results.values()) {
-					final Point[] rectPoints = bl.coords;
-					final Scalar colour = new Scalar(255, 0, 0);
-					for (int j = 0; j < 3; j++) {
-						Imgproc.line(image, rectPoints[j], rectPoints[j + 1], colour, 2, Imgproc.LINE_AA, 0);
-					}
-					Imgproc.line(image, rectPoints[3], rectPoints[0], colour, 2, Imgproc.LINE_AA, 0);
-				}
-				videoDisp.updateImage(image, "Video frame " + i);
+		if (pipeline.getFailure() != null) {
+			System.out.println("Exception when finding barcode " + pipeline.getFailure().getMessage());
+		}
 
-			}
-		} catch (final IOException ioe) {
-			System.out.println("IO Exception when finding barcode " + ioe.getMessage());
+		for (final VideoPipeline.Stage stage : VideoPipeline.Stage.values()) {
+			System.out.println(stage + ": " + pipeline.getStatistics(stage));
 		}
+
 		return foundCodes;
 	}
 
@@ -247,8 +255,7 @@ public class SimpleBarcodeTester {
 		final Map<CharSequence, BarcodeLocation> results = new HashMap<CharSequence, BarcodeLocation>();
 
 		for (final CandidateResult cr : candidateCodes) {
-			final BufferedImage candidate = cr.candidate;
-			final LuminanceSource source = new BufferedImageLuminanceSource(candidate);
+			final LuminanceSource source = new MatLuminanceSource(cr.ROI);
 			final BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
 			final Reader reader = new MultiFormatReader();
 
@@ -305,11 +312,7 @@ public class SimpleBarcodeTester {
 		Result[] results = null;
 
 		for (final CandidateResult cr : candidateCodes) {
-			final BufferedImage candidate = cr.candidate;
 			decodedBarcode = null;
-			final LuminanceSource source = new BufferedImageLuminanceSource(candidate);
-			final BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
-			final Reader reader = new MultiFormatReader();
 
 			final Map<DecodeHintType, Object> hints = new EnumMap<DecodeHintType, Object>(DecodeHintType.class);
 			hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
@@ -318,9 +321,10 @@ public class SimpleBarcodeTester {
 			// {
 			// result = reader.decode(bitmap, hints);
 
-			results = extractBarcode(candidate, hints);
+			results = extractBarcode(new MatLuminanceSource(cr.ROI), hints);
 
-			decodedBarcode = candidate;
+			// Only create a BufferedImage of the candidate if it is going to be shown.
+			decodedBarcode = SimpleBarcodeTester.showImages ? cr.getCandidate() : null;
 			// title = filename + " " + caption + " - barcode text " + result.getText() + "
 			// " + cr.getROICoords();
 			// }
@@ -355,19 +359,20 @@ public class SimpleBarcodeTester {
 			} else {
 				title = filename + " - no barcode found - " + cr.getROICoords();
 				if (SimpleBarcodeTester.showImages) {
-					ImageDisplay.showImageFrame(candidate, title);
+					ImageDisplay.showImageFrame(decodedBarcode, title);
 				}
 			}
 		}
 	}
 
 	public static Result[] extractBarcode(final BufferedImage bufferedImage, final Map<DecodeHintType, Object> hints) {
+		return SimpleBarcodeTester.extractBarcode(new BufferedImageLuminanceSource(
+				bufferedImage/* SimpleBarcodeTester.rotateImage(bufferedImage, d) */), hints);
+	}
+
+	public static Result[] extractBarcode(final LuminanceSource source, final Map<DecodeHintType, Object> hints) {
 		Result[] results = null;
 
-		// for(int d = 0; d < 360; d += 2)
-		// {
-		final LuminanceSource source = new BufferedImageLuminanceSource(
-				bufferedImage/* SimpleBarcodeTester.rotateImage(bufferedImage, d) */);
 		final BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
 
 		try {
@@ -386,7 +391,6 @@ public class SimpleBarcodeTester {
 				e1.printStackTrace();
 			}
 		}
-		// }
 
 		return results;
 	}